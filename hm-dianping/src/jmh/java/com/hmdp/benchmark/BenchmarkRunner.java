@@ -0,0 +1,43 @@
+package com.hmdp.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * 运行基准测试：每个线程数运行一遍、结果以JSON格式写入 输出目录/result-threads-N.json、方便和上一次的结果比较
+ * 系统属性：
+ * jmh.include 要运行的基准（正则）、默认全部
+ * jmh.threads 线程数、逗号分隔、默认1,4,16
+ * jmh.output 结果目录、默认target/jmh
+ * 命令行参数按JMH的格式解析（例如 -wi 1 -i 3）、会覆盖基准上的注解
+ * @author zyf
+ * @Data 2024/3/1 - 12:00
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = System.getProperty("jmh.include", "com.hmdp.benchmark.*");
+        String threads = System.getProperty("jmh.threads", "1,4,16");
+        File output = new File(System.getProperty("jmh.output", "target/jmh"));
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IllegalStateException("无法创建结果目录：" + output);
+        }
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (String thread : threads.split(",")) {
+            int count = Integer.parseInt(thread.trim());
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(include)
+                    .threads(count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(output, "result-threads-" + count + ".json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
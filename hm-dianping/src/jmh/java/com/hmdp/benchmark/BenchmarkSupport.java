@@ -0,0 +1,68 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * 基准测试的公共数据：不同大小的店铺数据、连接进程内RESP服务的连接工厂
+ * @author zyf
+ * @Data 2024/3/1 - 10:45
+ */
+final class BenchmarkSupport {
+
+    private static final String CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789/._-";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 连接进程内的RESP服务
+     * @param port
+     * @return 已初始化的连接工厂、用完需要destroy
+     */
+    static LettuceConnectionFactory connect(int port) {
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+    /**
+     * 构造一个店铺
+     * @param id
+     * @param payload small：和数据库中普通店铺相当（约300字节）、large：images字段约8KB（会触发二进制编码的压缩）
+     * @return
+     */
+    static Shop shop(long id, String payload) {
+        //固定种子：同一个id每次生成的数据相同
+        Random random = new Random(id);
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("103茶餐厅-" + id);
+        shop.setTypeId(1L);
+        shop.setImages(randomText(random, "large".equals(payload) ? 8192 : 120));
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        return sb.toString();
+    }
+}
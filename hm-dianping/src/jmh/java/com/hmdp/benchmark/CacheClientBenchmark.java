@@ -0,0 +1,156 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisScriptRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CacheClient三种查询方案的吞吐量：缓存穿透方案、逻辑过期方案、互斥锁方案
+ * 1、redis由进程内的RESP服务代替、不需要外部环境
+ * 2、hitRatio：命中的比例
+ *    缓存穿透/互斥锁方案的未命中使用递增的新id、保证每次都真正未命中（查询数据库、写回redis）
+ *    逻辑过期方案的未命中是逻辑过期的数据：返回旧数据并提交重建、重建写回的数据仍然是过期的
+ * 3、payload：店铺数据的大小
+ * 4、线程数由BenchmarkRunner控制
+ * 没有开启一级缓存、但热点key探测仍然生效：访问集中时部分命中来自本地副本、和线上行为一致
+ * @author zyf
+ * @Data 2024/3/1 - 11:05
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheClientBenchmark {
+
+    private static final String KEY_PREFIX = "bench:shop:";
+    private static final String LOGICAL_KEY_PREFIX = "bench:shop-logical:";
+    //预先写入的key数量
+    private static final int KEYS = 10000;
+    //RESP服务最多保存的key：超过后淘汰未命中时写入的key
+    private static final int MAX_KEYS = 100000;
+
+    @Param({"1.0", "0.9", "0.5"})
+    private double hitRatio;
+
+    @Param({"small", "large"})
+    private String payload;
+
+    private RespStubServer server;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+    private CacheRebuildExecutor rebuildExecutor;
+    private CacheClient cacheClient;
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    //未命中使用的id：从KEYS开始递增
+    private final AtomicLong missSequence = new AtomicLong(KEYS);
+    private int hitKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new RespStubServer(MAX_KEYS);
+        connectionFactory = BenchmarkSupport.connect(server.getPort());
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        rebuildExecutor = new CacheRebuildExecutor();
+        cacheClient = new CacheClient(stringRedisTemplate, new RedisBloomFilter(stringRedisTemplate), rebuildExecutor,
+                new RedisScriptRegistry(stringRedisTemplate));
+        //和店铺缓存一样使用二进制编码
+        cacheClient.setCodec(KEY_PREFIX, codec);
+        cacheClient.setCodec(LOGICAL_KEY_PREFIX, codec);
+        hitKeys = (int) (KEYS * hitRatio);
+    }
+
+    /**
+     * 每轮迭代前重新写入数据：上一轮未命中写入的数据不会影响命中率
+     */
+    @Setup(Level.Iteration)
+    public void seed() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushAll();
+            return null;
+        });
+        for (int i = 0; i < KEYS; i++) {
+            Shop shop = BenchmarkSupport.shop(i, payload);
+            //命中的key不设置过期时间：RESP服务淘汰数据时不会淘汰它们
+            if (i < hitKeys) {
+                byte[] key = (KEY_PREFIX + i).getBytes(StandardCharsets.UTF_8);
+                byte[] value = codec.encode(shop);
+                stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                        connection.set(key, value, Expiration.persistent(), RedisStringCommands.SetOption.upsert()));
+                cacheClient.setWithLogicalExpire(LOGICAL_KEY_PREFIX + i, shop, 1L, TimeUnit.HOURS);
+            } else {
+                cacheClient.setWithLogicalExpire(LOGICAL_KEY_PREFIX + i, shop, -1L, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        rebuildExecutor.destroy();
+        connectionFactory.destroy();
+        server.close();
+    }
+
+    @Benchmark
+    public Shop passThrough() {
+        return cacheClient.queryWithPassThrough(KEY_PREFIX, nextId(), Shop.class, this::loadShop, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop mutex() {
+        return cacheClient.queryWithMutex(KEY_PREFIX, nextId(), Shop.class, this::loadShop, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop logicalExpire() {
+        long id = ThreadLocalRandom.current().nextInt(KEYS);
+        //重建时同样写入已经过期的数据：保持命中率不变
+        return cacheClient.queryWithLogicalExpire(LOGICAL_KEY_PREFIX, id, Shop.class, this::loadShop, -1L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 按命中率选择id：命中时从预先写入的key中随机选择、未命中时使用新的id
+     */
+    private long nextId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (hitKeys > 0 && random.nextDouble() < hitRatio) {
+            return random.nextInt(hitKeys);
+        }
+        return missSequence.incrementAndGet();
+    }
+
+    /**
+     * 模拟数据库查询：只构造对象、不计入数据库耗时
+     */
+    private Shop loadShop(Long id) {
+        return BenchmarkSupport.shop(id, payload);
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON和二进制编解码器的耗时：普通缓存值（Shop）和带逻辑过期时间的缓存值（RedisData）
+ * @author zyf
+ * @Data 2024/3/1 - 11:40
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"json", "binary"})
+    private String codecName;
+
+    @Param({"small", "large"})
+    private String payload;
+
+    private CacheCodec codec;
+    private Shop shop;
+    private RedisData redisData;
+    private byte[] shopBytes;
+    private byte[] redisDataBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = "binary".equals(codecName) ? new BinaryCacheCodec() : JsonCacheCodec.INSTANCE;
+        shop = BenchmarkSupport.shop(1L, payload);
+        redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        redisData.setRebuildCost(5L);
+        shopBytes = codec.encode(shop);
+        redisDataBytes = codec.encodeWithLogicalExpire(redisData);
+    }
+
+    @Benchmark
+    public byte[] encodeShop() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decodeShop() {
+        return codec.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeRedisData() {
+        return codec.encodeWithLogicalExpire(redisData);
+    }
+
+    @Benchmark
+    public RedisData decodeRedisData() {
+        return codec.decodeWithLogicalExpire(redisDataBytes, Shop.class);
+    }
+}
@@ -0,0 +1,319 @@
+package com.hmdp.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的RESP2服务：只实现基准测试用到的命令、让基准测试不依赖真实的redis
+ * 支持：PING、GET、SET（EX/PX/NX/XX）、DEL、EXISTS、PUBLISH、SELECT、CLIENT、FLUSHALL、FLUSHDB、QUIT
+ * 和redis一样按连接串行处理命令、支持管道
+ * 数据量超过maxKeys时随机淘汰带过期时间的key（相当于volatile-random）、避免未命中写入的数据无限增长
+ * @author zyf
+ * @Data 2024/3/1 - 10:20
+ */
+public class RespStubServer implements Closeable {
+
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Entry> data = new ConcurrentHashMap<>();
+    private final int maxKeys;
+    private final List<Socket> clients = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public RespStubServer(int maxKeys) throws IOException {
+        this.maxKeys = maxKeys;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "resp-stub-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (clients) {
+                    clients.add(socket);
+                }
+                Thread worker = new Thread(() -> serve(socket), "resp-stub-" + socket.getPort());
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            while (running) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                boolean quit = execute(command, out);
+                //管道中还有未处理的命令时先不刷新、合并写回
+                if (quit || in.available() == 0) {
+                    out.flush();
+                }
+                if (quit) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //客户端断开
+        }
+    }
+
+    private boolean execute(List<byte[]> command, OutputStream out) throws IOException {
+        String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase();
+        switch (name) {
+            case "PING":
+                out.write(PONG);
+                return false;
+            case "GET":
+                writeBulk(out, get(key(command, 1)));
+                return false;
+            case "SET":
+                set(command, out);
+                return false;
+            case "DEL": {
+                int removed = 0;
+                for (int i = 1; i < command.size(); i++) {
+                    if (data.remove(key(command, i)) != null) {
+                        removed++;
+                    }
+                }
+                writeInteger(out, removed);
+                return false;
+            }
+            case "EXISTS": {
+                int count = 0;
+                for (int i = 1; i < command.size(); i++) {
+                    if (get(key(command, i)) != null) {
+                        count++;
+                    }
+                }
+                writeInteger(out, count);
+                return false;
+            }
+            case "PUBLISH":
+                //没有订阅者
+                writeInteger(out, 0);
+                return false;
+            case "FLUSHALL":
+            case "FLUSHDB":
+                data.clear();
+                out.write(OK);
+                return false;
+            case "SELECT":
+            case "CLIENT":
+                out.write(OK);
+                return false;
+            case "QUIT":
+                out.write(OK);
+                return true;
+            default:
+                writeError(out, "ERR unknown command '" + name + "'");
+                return false;
+        }
+    }
+
+    private byte[] get(String key) {
+        Entry entry = data.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt != 0 && entry.expireAt < System.currentTimeMillis()) {
+            data.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private void set(List<byte[]> command, OutputStream out) throws IOException {
+        String key = key(command, 1);
+        byte[] value = command.get(2);
+        long expireAt = 0;
+        boolean nx = false;
+        boolean xx = false;
+        for (int i = 3; i < command.size(); i++) {
+            String option = new String(command.get(i), StandardCharsets.US_ASCII).toUpperCase();
+            switch (option) {
+                case "EX":
+                    expireAt = System.currentTimeMillis() + Long.parseLong(key(command, ++i)) * 1000;
+                    break;
+                case "PX":
+                    expireAt = System.currentTimeMillis() + Long.parseLong(key(command, ++i));
+                    break;
+                case "NX":
+                    nx = true;
+                    break;
+                case "XX":
+                    xx = true;
+                    break;
+                default:
+                    writeError(out, "ERR syntax error");
+                    return;
+            }
+        }
+        boolean exists = get(key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            out.write(NIL);
+            return;
+        }
+        if (!exists && data.size() >= maxKeys) {
+            evictVolatile();
+        }
+        data.put(key, new Entry(value, expireAt));
+        out.write(OK);
+    }
+
+    /**
+     * 淘汰一个带过期时间的key：ConcurrentHashMap的迭代顺序和key的哈希有关、近似随机
+     */
+    private void evictVolatile() {
+        Iterator<Map.Entry<String, Entry>> iterator = data.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().expireAt != 0) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private static String key(List<byte[]> command, int index) {
+        return new String(command.get(index), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取一条命令：客户端发送的都是由bulk string组成的数组
+     * @return 连接已关闭时返回null
+     */
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("不支持的请求类型：" + (char) type);
+        }
+        int count = (int) readLong(in);
+        List<byte[]> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("参数必须是bulk string");
+            }
+            int length = (int) readLong(in);
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            //跳过\r\n
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+        //跳过\n
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write(NIL);
+            return;
+        }
+        out.write('$');
+        out.write(Integer.toString(value.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(value);
+        out.write(CRLF);
+    }
+
+    private static void writeInteger(OutputStream out, long value) throws IOException {
+        out.write(':');
+        out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeError(OutputStream out, String message) throws IOException {
+        out.write('-');
+        out.write(message.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private static class Entry {
+        final byte[] value;
+        final long expireAt;
+
+        Entry(byte[] value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
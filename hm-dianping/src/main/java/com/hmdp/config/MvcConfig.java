@@ -1,6 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RedisScriptRegistry;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -17,6 +20,8 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -31,6 +36,12 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/user/login"
         ).order(1);     //这里还需要调节拦截器的执行顺序：先拦截所有路径调整token有效期、再判断是否拦截
 
+        //管理员拦截器：/admin/**只允许管理员访问、在登录校验之后
+        registry.addInterceptor(new AdminInterceptor(stringRedisTemplate)).addPathPatterns("/admin/**").order(2);
+
+        //限流拦截器：只处理带有@RateLimit的接口、在登录校验之后（按用户限流）
+        registry.addInterceptor(new RateLimitInterceptor(scriptRegistry)).addPathPatterns("/**").order(3);
+
         //拦截所有请求：方便刷新token有效期
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
@@ -0,0 +1,47 @@
+package com.hmdp.config;
+
+import com.hmdp.service.impl.ShopTypeServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillStockHints;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_REBUILT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
+
+/**
+ * redis发布订阅配置
+ * @author zyf
+ * @Data 2024/2/20 - 10:40
+ */
+@Configuration
+public class RedisConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       ShopTypeServiceImpl shopTypeService,
+                                                                       SeckillStockHints seckillStockHints,
+                                                                       SeckillOrderStatus seckillOrderStatus){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //订阅缓存失效通知：删除本实例的一级缓存
+        container.addMessageListener(cacheClient, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //订阅缓存重建完成通知：唤醒互斥锁方案中等待的线程
+        container.addMessageListener(cacheClient, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        //订阅店铺类型修改通知：重新加载快照
+        container.addMessageListener(shopTypeService, new ChannelTopic(SHOP_TYPE_CHANGED_CHANNEL));
+        //订阅秒杀券卖完通知：本实例直接拒绝之后的秒杀请求
+        container.addMessageListener(seckillStockHints, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //订阅订单处理状态变化：唤醒长轮询查询订单状态的请求
+        container.addMessageListener(seckillOrderStatus, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+        return container;
+    }
+}
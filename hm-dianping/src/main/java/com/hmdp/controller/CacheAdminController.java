@@ -0,0 +1,89 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisScriptRegistry;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存管理：只允许管理员访问（AdminInterceptor）
+ * </p>
+ *
+ * @author zyf
+ * @since 2024-2-24
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisBloomFilter bloomFilter;
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    /**
+     * 缓存指标：按key前缀的命中率、空值命中率、重建次数和耗时、获取锁失败、反序列化耗时
+     * 以及重建线程池、一级缓存、布隆过滤器的状态
+     * @return
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        Map<String, Object> stats = new LinkedHashMap<>(cacheClient.getStats());
+        stats.put("bloomFilter", bloomFilter.getStats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 当前的热点key：按窗口内估算的访问次数从高到低
+     * @return
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+
+    /**
+     * lua脚本：SHA1、调用次数、平均和最大耗时、失败次数、重新加载次数
+     * @return
+     */
+    @GetMapping("/scripts")
+    public Result scripts() {
+        return Result.ok(scriptRegistry.getStats());
+    }
+
+    /**
+     * 手动触发缓存预热：只接受POST、查询进度不会触发预热
+     * @return
+     */
+    @PostMapping("/warm-up")
+    public Result warmUp() {
+        if (!cacheWarmer.start()) {
+            return Result.fail("缓存预热正在进行中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询缓存预热进度
+     * @return
+     */
+    @GetMapping("/warm-up/progress")
+    public Result warmUpProgress() {
+        return Result.ok(cacheWarmer.getProgress());
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 秒杀订单管理
+ * </p>
+ *
+ * @author zyf
+ * @since 2024-3-3
+ */
+@RestController
+@RequestMapping("/admin/order")
+public class OrderAdminController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 订单处理的积压情况：pending-list的长度、每个分区的队列长度和等待时间、已处理的订单数
+     * @return
+     */
+    @GetMapping("/workers")
+    public Result orderWorkers() {
+        return Result.ok(voucherOrderService.getOrderWorkerStats());
+    }
+}
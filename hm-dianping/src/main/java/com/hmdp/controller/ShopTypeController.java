@@ -1,15 +1,16 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -25,10 +26,22 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    /**
+     * 店铺类型列表：直接返回内存快照中序列化好的响应体
+     * 客户端带上的ETag与当前快照一致时返回304：If-None-Match由spring解析（弱校验W/、多个ETag、*）
+     * @param request
+     * @return
+     */
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
-        return Result.ok(typeList);
+    public ResponseEntity<byte[]> queryTypeList(WebRequest request) {
+        ShopTypeSnapshot snapshot = typeService.getSnapshot();
+        if (request.checkNotModified(snapshot.getETag())) {
+            //已经设置了304和ETag响应头
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(snapshot.getETag())
+                .body(snapshot.getBody());
     }
 }
@@ -4,10 +4,14 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RateLimit;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -27,12 +31,25 @@ public class VoucherOrderController {
     private IVoucherOrderService voucherOrderService;
 
     /**
-     * 优惠券秒杀功能
+     * 优惠券秒杀功能：限流之后才执行秒杀脚本
      * @param voucherId
      * @return
      */
+    @RateLimit(name = "seckill")
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态
+     * @param orderId 秒杀接口返回的订单id
+     * @param wait 订单还在排队时最多等待的秒数（长轮询）、默认立即返回
+     * @return
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> orderStatus(@PathVariable("id") Long orderId,
+                                              @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        return voucherOrderService.queryOrderStatus(orderId, wait);
+    }
 }
@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 店铺类型的不可变快照：版本号、类型列表、已经序列化好的响应体和ETag
+ * @author zyf
+ * @Data 2024/2/26 - 16:20
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    private final long version;
+    private final List<ShopType> types;
+    private final byte[] body;
+    private final String eTag;
+}
@@ -21,10 +21,26 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增商铺信息
+     * @param shop
+     * @return
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新商铺信息
      * @param shop
      * @return
      */
     Result update(Shop shop);
+
+    /**
+     * 根据商铺类型分页查询：从有序集合读取id、再批量查询缓存
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param sortBy 排序字段：id、score、sold、comments
+     * @return
+     */
+    Result queryShopByType(Integer typeId, Integer current, String sortBy);
 }
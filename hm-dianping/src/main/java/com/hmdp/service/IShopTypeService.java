@@ -1,5 +1,6 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
+    /**
+     * 当前的店铺类型快照：按sort排序、不访问数据库
+     * @return
+     */
+    ShopTypeSnapshot getSnapshot();
 }
@@ -3,6 +3,11 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -27,4 +32,25 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      * @return
      */
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单：一次去重查询、按优惠券聚合扣减库存、一条多行INSERT
+     * @param voucherOrders
+     * @return 数据库中存在的订单id
+     */
+    Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 查询秒杀订单的处理状态：QUEUED、SUCCESS、FAILED
+     * @param orderId
+     * @param waitSeconds 订单还在排队时最多等待的时间（长轮询）、0表示立即返回
+     * @return
+     */
+    DeferredResult<Result> queryOrderStatus(Long orderId, long waitSeconds);
+
+    /**
+     * 订单处理情况：各分区的队列长度、等待时间、处理数量
+     * @return
+     */
+    Map<String, Object> getOrderWorkerStats();
 }
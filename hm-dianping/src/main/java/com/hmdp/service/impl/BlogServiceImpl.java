@@ -14,6 +14,7 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -24,9 +25,15 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
+
 /**
  * <p>
  *  服务实现类
@@ -43,6 +50,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private FollowServiceImpl followService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
 
     /**
      * 获取发布blog的用户
@@ -55,6 +64,26 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIcon(user.getIcon());
     }
 
+    /**
+     * 批量获取一页blog的用户：一次MGET查redis、未命中的用户合并成一次数据库查询
+     * @param blogs
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                        ids -> userService.listByIds(ids).stream().collect(Collectors.toMap(
+                                User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                        CACHE_USER_TTL, TimeUnit.MINUTES)
+                .stream().collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -64,10 +93,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog ->{
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -239,8 +266,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join("," + ids);
         List<Blog> blogs = query().in("id",ids).last("ORDER BY FIELE(id,"+idStr+")").list();
 
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            queryBlogUser(blog);
             isBlogLiked(blog);
         }
         //5、返回
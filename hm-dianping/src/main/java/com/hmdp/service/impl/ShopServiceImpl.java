@@ -10,20 +10,38 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.utils.BinaryCacheCodec;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -35,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author zyf
  * @since 2024-2-12
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -43,6 +62,28 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Resource
     private CacheClient cacheClient;
+
+    @Resource
+    private RedisBloomFilter bloomFilter;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @PostConstruct
+    private void init() {
+        //店铺详情是热点数据：开启一级缓存
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY);
+        //一级缓存放不下的店铺：序列化后保存在堆外内存
+        cacheClient.enableOffHeapCache(CACHE_SHOP_KEY, CACHE_OFFHEAP_SHOP_BYTES);
+        //店铺缓存使用二进制格式：体积更小、反序列化更快
+        cacheClient.setCodec(CACHE_SHOP_KEY, new BinaryCacheCodec());
+        //店铺id的布隆过滤器：重建时扫描tb_shop的全部id
+        bloomFilter.register(BLOOM_SHOP_KEY, BLOOM_SHOP_EXPECTED_INSERTIONS, BLOOM_FPP,
+                sink -> listObjs(new QueryWrapper<Shop>().select("id")).forEach(sink));
+        cacheClient.enableBloomFilter(CACHE_SHOP_KEY, BLOOM_SHOP_KEY);
+        cacheClient.enableBloomFilter(CACHE_SHOP_HASH_KEY, BLOOM_SHOP_KEY);
+    }
+
     /**
      * 根据id查询商铺信息
      * @param id
@@ -52,10 +93,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Result queryById(Long id) {
         //缓存穿透
         //queryWithPassThrough(id);
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,id2->getById(id2),CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,id2->getById(id2),CACHE_SHOP_TTL,TimeUnit.MINUTES);
+
+        //提前刷新：在过期之前按概率后台重建、避免过期后第一个请求查询数据库
+        Shop shop = cacheClient.queryWithRefreshAhead(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
 
         //互斥锁解决缓存击穿
-        //Shop shop = queryWithMutex(id);
+        //Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
 
         //逻辑过期解决缓存击穿
         //Shop shop = queryWithLogicalExpire(id);
@@ -67,6 +111,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 新增商铺信息
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        //1、写入数据库
+        save(shop);
+        //2、新的id加入布隆过滤器、否则查询时会被当成不存在的id拦截
+        bloomFilter.add(BLOOM_SHOP_KEY, shop.getId());
+        //3、加入类型索引
+        indexShops(Collections.singletonList(shop));
+        //4、返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新商铺信息
      * @param shop
@@ -80,36 +141,143 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id为空");
         }
         //todo 缓存更新
-        //1、更新数据库信息
+        //1、更新数据库信息：记录修改前后的数据、用于维护类型索引
+        Shop old = getById(id);
         updateById(shop);
-        //2、删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+ id);
+        Shop updated = getById(id);
+        //2、删除详情缓存：事务提交后删除、延迟后再删除一次、删除失败进入重试队列
+        cacheInvalidator.invalidateAfterCommit(CACHE_SHOP_KEY + id);
+        //3、事务提交后更新类型索引、只修改hash缓存中变化了的字段
+        if (updated != null){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reindexShop(old, updated);
+                    patchShopHash(shop);
+                }
+            });
+        }
         return Result.ok();
     }
 
+    //店铺列表需要的字段
+    private static final List<String> SHOP_LIST_FIELDS = Arrays.asList(
+            "id", "name", "typeId", "images", "area", "address", "avgPrice", "sold", "comments", "score");
 
     /**
-     * 互斥锁解决缓存击穿问题
-     * 上锁
-     * @param key
+     * 修改hash缓存中变化了的字段：修改失败时删除、下一次查询重新加载
+     * @param changes 更新请求中的店铺数据（只有不为空的字段会被修改）
+     */
+    private void patchShopHash(Shop changes){
+        String key = CACHE_SHOP_HASH_KEY + changes.getId();
+        try {
+            cacheClient.patchHash(key, changes);
+        }catch (Exception e){
+            log.warn("修改店铺hash缓存失败、删除缓存：{}", key, e);
+            cacheInvalidator.invalidate(key);
+        }
+    }
+
+    //店铺列表支持的排序字段：id升序（与原来的数据库分页顺序一致）、其余按数值降序
+    private static final List<String> SHOP_SORT_FIELDS = Arrays.asList("id", "score", "sold", "comments");
+
+    /**
+     * 根据商铺类型分页查询
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param sortBy 排序字段
      * @return
      */
-    private boolean tryLock(String key){
-        //向redis存入一个数据作为逻辑锁、使用字符串类型的SETNX操作：redis数据库没有目标数据才会执行新增（这里的值随意即可）
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        //上面语句返回的flag是一个引用类型的Boolean，若直接返回、系统会自动拆箱后返回、可能造成空指针异常
-        //return flag;
-        return BooleanUtil.isTrue(flag);
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, String sortBy) {
+        if (!SHOP_SORT_FIELDS.contains(sortBy)){
+            return Result.fail("不支持的排序字段：" + sortBy);
+        }
+        //1、确保该类型的索引已经建立
+        ensureTypeIndex(typeId);
+        //2、从有序集合读取这一页的id
+        long start = (long) (Math.max(current, 1) - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        long end = start + SystemConstants.DEFAULT_PAGE_SIZE - 1;
+        String key = SHOP_TYPE_INDEX_KEY + typeId + ":" + sortBy;
+        Set<String> members = "id".equals(sortBy)
+                ? stringRedisTemplate.opsForZSet().range(key, start, end)
+                : stringRedisTemplate.opsForZSet().reverseRange(key, start, end);
+        if (members == null || members.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        //3、批量查询hash缓存：只读取列表需要的字段、未命中的id合并成一次数据库查询
+        List<Shop> shops = cacheClient.queryHashBatch(CACHE_SHOP_HASH_KEY, ids, Shop.class, SHOP_LIST_FIELDS,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //4、建立索引时与修改类型并发、可能残留已经换了类型的店铺
+        shops.removeIf(s -> s.getTypeId() == null || s.getTypeId() != typeId.longValue());
+        return Result.ok(shops);
+    }
+
+    /**
+     * 类型索引不存在时（第一次查询、redis数据丢失）从数据库建立
+     * @param typeId
+     */
+    private void ensureTypeIndex(Integer typeId){
+        String readyKey = SHOP_TYPE_INDEX_KEY + typeId + ":ready";
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(readyKey))){
+            return;
+        }
+        List<Shop> shops = query().select("id", "type_id", "score", "sold", "comments")
+                .eq("type_id", typeId).list();
+        indexShops(shops);
+        stringRedisTemplate.opsForValue().set(readyKey, "1");
     }
 
     /**
-     * 释放锁
-     * @param key
+     * 修改后更新索引：类型变化时从原类型的索引中删除
      */
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private void reindexShop(Shop old, Shop updated){
+        try {
+            if (old != null && old.getTypeId() != null && !old.getTypeId().equals(updated.getTypeId())){
+                byte[] member = String.valueOf(old.getId()).getBytes(StandardCharsets.UTF_8);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (String field : SHOP_SORT_FIELDS) {
+                        connection.zRem((SHOP_TYPE_INDEX_KEY + old.getTypeId() + ":" + field).getBytes(StandardCharsets.UTF_8), member);
+                    }
+                    return null;
+                });
+            }
+            indexShops(Collections.singletonList(updated));
+        }catch (Exception e){
+            log.error("更新店铺类型索引失败：{}", updated.getId(), e);
+        }
     }
 
+    /**
+     * 用管道把店铺写入所属类型的各个排序索引
+     */
+    private void indexShops(Collection<Shop> shops){
+        if (shops.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null){
+                    continue;
+                }
+                byte[] member = String.valueOf(shop.getId()).getBytes(StandardCharsets.UTF_8);
+                String prefix = SHOP_TYPE_INDEX_KEY + shop.getTypeId() + ":";
+                connection.zAdd((prefix + "id").getBytes(StandardCharsets.UTF_8), shop.getId(), member);
+                connection.zAdd((prefix + "score").getBytes(StandardCharsets.UTF_8), scoreOf(shop.getScore()), member);
+                connection.zAdd((prefix + "sold").getBytes(StandardCharsets.UTF_8), scoreOf(shop.getSold()), member);
+                connection.zAdd((prefix + "comments").getBytes(StandardCharsets.UTF_8), scoreOf(shop.getComments()), member);
+            }
+            return null;
+        });
+    }
+
+    private static double scoreOf(Integer value){
+        return value == null ? 0 : value;
+    }
+
+
     /**
      * 缓存穿透的代码逻辑
      * @param id
@@ -161,85 +329,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
- */   /**
-     * 互斥锁解决缓存击穿问题代码逻辑
-     * @param id
-     * @return
-     */
-    public Shop queryWithMutex(Long id){
-        String key = "cache:shop:"+id;  //为id添加前缀整体作为key
-        //1、从redis缓存查询是否有数据
-        /*
-        这里选择用id作为redis的key、商铺信息作为value、id保证了数据唯一性
-        同时、因为使用的是stringRedisTemplate，返回的是string
-        需要先将其反序列化为Shop对象
-         */
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2、如果有，直接返回数据、这里的判断时是判断是否有具体值、而如果为空值、则跳过
-        if (StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);//对象的反序列化
-            return shop;
-        }
-
-        //todo 缓存穿透问题：判断缓存命中
-        if (shopJson != null){  //上面的if判断完、此时的对象有两种可能：没有命中或空值
-            //空值
-            return null;
-        }
-
-        //3、如果缓存没数据、尝试获取互斥锁
-        //todo 缓存击穿解决：互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null; //mybatis-plus
-        try {
-            //a、获取互斥锁
-            boolean isLock = tryLock(lockKey);
-            //b、判断是否获取成功：失败：休眠等待重新向redis查询商铺缓存
-            if (!isLock){
-                Thread.sleep(50);
-                //休眠结束又要重新向redis查询缓存、即递归实现
-                return queryWithMutex(id);
-            }
-            //c、成功做二次检查：重新查询redis缓存是否存在数据、存在则不需要重建缓存、否则：根据id查询数据库、将数据存入缓存、释放锁资源
-            String newShopJson = stringRedisTemplate.opsForValue().get(key);
-
-            //如果有，直接返回数据、这里的判断时是判断是否有具体值、而如果为空值、则跳过
-            if (StrUtil.isNotBlank(shopJson)){
-                shop = JSONUtil.toBean(newShopJson, Shop.class);//对象的反序列化
-                return shop;
-            }
-
-            //4、如果没有，查询数据库
-            shop = this.getById(id);
-
-            //5、数据库是否能查到数据：如果查不到、说明没有数据
-            if (shop == null){
-                //todo 解决缓存穿透的问题：使用缓存空对象
-                //stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //todo 为redis缓存的ttl添加一个随机数、防止缓存雪崩
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL+Long.getLong(RandomUtil.randomNumbers(6)), TimeUnit.MINUTES);
-                return null;
-            }
-
-            //6、如果查到数据：将数据添加到redis缓存中
-            String jsonStr = JSONUtil.toJsonStr(shop);  //将user对象序列化为json
-            // stringRedisTemplate.opsForValue().set(key,jsonStr);
-
-            //实现了缓存更新策略的读操作（没有修改）：使用超时剔除方案、添加一个超时时间
-            //todo 缓存更新策略
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(jsonStr),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //todo 释放锁
-            unlock(lockKey);
-        }
-
-
-        //7、返回数据
-        return shop;
-    }
+ */
 
 /*    *//**
      * 数据预热（重建缓存信息）
@@ -1,10 +1,33 @@
 package com.hmdp.service.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.RedisScriptRegistry;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -14,7 +37,169 @@ import org.springframework.stereotype.Service;
  * @author zyf
  * @since 2024-2-12
  */
+@Slf4j
 @Service
-public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
+public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService, MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //shop_type_snapshot.lua：按版本号写入快照
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //当前快照：整体替换、读取不需要加锁
+    private volatile ShopTypeSnapshot snapshot;
+
+    /**
+     * 读取快照：第一次调用时加载
+     * @return
+     */
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        return reload();
+    }
+
+    /**
+     * 重新加载快照
+     * redis中的快照：hash结构、version为最新版本号、dataVersion为data对应的版本号
+     * 1、data存在且是最新版本：直接使用、不访问数据库
+     * 2、data不存在或落后于version（写入方还没写完、或者写入失败）：查询数据库并尝试写回redis
+     */
+    private synchronized ShopTypeSnapshot reload() {
+        try {
+            List<Object> fields = stringRedisTemplate.opsForHash()
+                    .multiGet(CACHE_SHOP_TYPE_KEY, Arrays.asList("version", "dataVersion", "data"));
+            long version = parseVersion(fields.get(0));
+            String data = (String) fields.get(2);
+            List<ShopType> types;
+            if (data == null || parseVersion(fields.get(1)) < version) {
+                types = queryFromDb();
+                scriptRegistry.execute("shop_type_snapshot", Long.class, Collections.singletonList(CACHE_SHOP_TYPE_KEY),
+                        String.valueOf(version), objectMapper.writeValueAsString(types));
+            } else {
+                types = objectMapper.readValue(data, new TypeReference<List<ShopType>>() {});
+            }
+            snapshot = buildSnapshot(version, types);
+        } catch (Exception e) {
+            log.error("加载店铺类型快照失败", e);
+            //redis不可用：已有快照继续使用、没有快照时从数据库加载
+            if (snapshot == null) {
+                snapshot = buildSnapshot(-1, queryFromDb());
+            }
+        }
+        return snapshot;
+    }
+
+    private List<ShopType> queryFromDb() {
+        return query().orderByAsc("sort").list();
+    }
+
+    private ShopTypeSnapshot buildSnapshot(long version, List<ShopType> types) {
+        byte[] body;
+        try {
+            //与Spring MVC序列化Result的结果一致
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        //ETag包含内容摘要：redis数据丢失导致版本号重置时、客户端的缓存也不会被误用
+        CRC32 crc32 = new CRC32();
+        crc32.update(body);
+        String eTag = "\"" + version + "-" + Long.toHexString(crc32.getValue()) + "\"";
+        return new ShopTypeSnapshot(version, Collections.unmodifiableList(types), body, eTag);
+    }
+
+    private static long parseVersion(Object value) {
+        return value == null ? 0L : Long.parseLong(value.toString());
+    }
+
+    /**
+     * 数据修改后：版本号加一、写入新快照、通知所有实例重新加载
+     */
+    private void publishAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                publish();
+            }
+        });
+    }
+
+    private void publish() {
+        try {
+            Long version = stringRedisTemplate.opsForHash().increment(CACHE_SHOP_TYPE_KEY, "version", 1);
+            scriptRegistry.execute("shop_type_snapshot", Long.class, Collections.singletonList(CACHE_SHOP_TYPE_KEY),
+                    String.valueOf(version), objectMapper.writeValueAsString(queryFromDb()));
+            stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, String.valueOf(version));
+        } catch (Exception e) {
+            //定时检查版本号时会再次加载
+            log.error("发布店铺类型快照失败", e);
+        }
+        reload();
+    }
+
+    /**
+     * 收到其他实例的修改通知：重新加载快照
+     * @param message
+     * @param pattern
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        reload();
+    }
+
+    /**
+     * 定时比较版本号：防止错过修改通知
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void checkVersion() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        try {
+            Object version = stringRedisTemplate.opsForHash().get(CACHE_SHOP_TYPE_KEY, "version");
+            if (parseVersion(version) != current.getVersion()) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.warn("检查店铺类型版本号失败", e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean save(ShopType entity) {
+        boolean success = super.save(entity);
+        publishAfterCommit();
+        return success;
+    }
+
+    @Override
+    @Transactional
+    public boolean updateById(ShopType entity) {
+        boolean success = super.updateById(entity);
+        publishAfterCommit();
+        return success;
+    }
 
+    @Override
+    @Transactional
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        publishAfterCommit();
+        return success;
+    }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,24 +8,58 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.PartitionedWorkers;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillStockHints;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -33,6 +68,7 @@ import java.util.concurrent.*;
  * @author zyf
  * @since 2024-2-12
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -42,54 +78,320 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillStockHints seckillStockHints;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
 
     @Resource
     private RedissonClient redissonClient;
 
+    //代理对象：消费线程中没有AopContext、注入自身的代理让createVoucherOrder的事务生效
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
-    //调用lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-    //创建阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
-    //创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //调用lua脚本：seckill.lua、返回 [结果, 剩余库存]
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //消费者名称：同一个消费者组内每个实例不同
+    private final String consumerName = "c-" + ManagementFactory.getRuntimeMXBean().getName();
+    //读取消息队列的线程
+    private final ExecutorService seckillOrderExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "seckill-order-reader"));
+    //处理订单的线程：按用户id分区、同一个用户的订单总在同一个线程中处理、一人一单的判断不需要加锁
+    private final PartitionedWorkers<PendingOrder> orderWorkers = new PartitionedWorkers<>(
+            "seckill-order", SECKILL_ORDER_PARTITIONS, SECKILL_ORDER_QUEUE_CAPACITY,
+            SECKILL_ORDER_BATCH_SIZE, SECKILL_ORDER_BATCH_MILLIS,
+            order -> order.voucherOrder.getUserId(), this::persistOrders);
+    //已经读取、还在本地队列中没有确认的消息id：reclaimPendingOrders不认领
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
 
     //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroupIfAbsent();
+        seckillOrderExecutor.submit(new VoucherOrderHandler());
     }
+
+    /**
+     * 创建消费者组：stream不存在时一起创建（MKSTREAM）、消费者组已存在时忽略
+     */
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!String.valueOf(NestedExceptionUtils.getMostSpecificCause(e).getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        //先停止读取：最多等一次阻塞读取的时间
+        seckillOrderExecutor.awaitTermination(SECKILL_ORDER_BLOCK_MILLIS * 2, TimeUnit.MILLISECONDS);
+        //再处理完各分区队列中已经读取的订单：没处理完的留在pending-list中、由其他实例认领
+        orderWorkers.shutdown(SECKILL_ORDER_BLOCK_MILLIS * 2);
+    }
+
     // 用于线程池处理的任务
-// 当初始化完毕后，就会去从对列中去拿信息
+    // 当初始化完毕后，就会去消息队列中拿订单信息、按用户id分发到各分区
+    // 分区队列满时阻塞：处理跟不上时不再读取新消息、订单留在stream中
     private class VoucherOrderHandler implements Runnable {
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
+                    // 1.获取消息队列中的订单信息：XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = readOrders(SECKILL_ORDER_BATCH_SIZE, SECKILL_ORDER_BLOCK_MILLIS);
+                    // 2.分发到用户所在的分区：各分区攒批创建订单、提交后确认消息
+                    for (MapRecord<String, Object, Object> record : list) {
+                        String id = record.getId().getValue();
+                        inFlight.add(id);
+                        try {
+                            orderWorkers.submit(new PendingOrder(record.getId(), toVoucherOrder(record.getValue())));
+                        } catch (RuntimeException e) {
+                            inFlight.remove(id);
+                            throw e;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    //没有分发的订单留在pending-list中、由reclaimPendingOrders重新投递
+                    log.error("读取订单异常", e);
+                    pause();
                 }
             }
         }
     }
 
+    /**
+     * 分区线程处理一批订单：一个事务创建整批订单、提交后一次确认所有消息：XACK stream.orders g1 id1 id2 ...
+     * 处理失败的整批订单留在pending-list中、由reclaimPendingOrders逐条重新投递：个别异常订单不会拖累整批
+     * @param batch 同一个分区的订单
+     */
+    private void persistOrders(List<PendingOrder> batch) {
+        List<VoucherOrder> orders = new ArrayList<>(batch.size());
+        RecordId[] ids = new RecordId[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            orders.add(batch.get(i).voucherOrder);
+            ids[i] = batch.get(i).id;
+        }
+        try {
+            Set<Long> persisted = proxy.createVoucherOrders(orders);
+            //先写入处理状态再确认：写入失败时消息会被重新投递、再次写入
+            completeOrderStatus(orders, persisted);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, ids);
+        } finally {
+            for (RecordId id : ids) {
+                inFlight.remove(id.getValue());
+            }
+        }
+    }
+
+    /**
+     * 订单处理情况：各分区的积压、本地未确认的消息数、消费者组的pending数
+     * @return
+     */
+    @Override
+    public Map<String, Object> getOrderWorkerStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumer", consumerName);
+        stats.put("inFlight", inFlight.size());
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+        stats.put("pending", summary == null ? 0L : summary.getTotalPendingMessages());
+        stats.put("partitions", orderWorkers.getStats());
+        return stats;
+    }
+
+    /**
+     * 读取到、还没有创建的订单
+     */
+    private static class PendingOrder {
+        final RecordId id;
+        final VoucherOrder voucherOrder;
+
+        PendingOrder(RecordId id, VoucherOrder voucherOrder) {
+            this.id = id;
+            this.voucherOrder = voucherOrder;
+        }
+    }
+
+    /**
+     * 读取新的订单消息
+     * @param count 最多读取的条数
+     * @param blockMillis 没有消息时阻塞的时间（必须大于0：0表示一直阻塞）
+     * @return 没有消息时返回空集合
+     */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readOrders(int count, long blockMillis) {
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                StreamReadOptions.empty().count(count).block(Duration.ofMillis(blockMillis)),
+                StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
+        );
+        return list == null ? new ArrayList<>() : new ArrayList<>(list);
+    }
+
+    /**
+     * 出错后暂停一下：redis或数据库不可用时不会空转
+     */
+    private void pause() {
+        try {
+            Thread.sleep(SECKILL_ORDER_BLOCK_MILLIS / 4);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * 认领pending-list中长时间没有确认的订单（消费者宕机、或者处理失败）：至少处理一次
+     * 1、XPENDING查询空闲超过SECKILL_ORDER_CLAIM_IDLE的订单
+     * 2、投递次数过多的订单转入死信队列、不再重试
+     * 3、XCLAIM认领给当前消费者：多个实例同时认领时只有一个能成功
+     * 4、创建订单、XACK
+     * 订单的处理是幂等的：已经存在的订单会被跳过
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void reclaimPendingOrders() {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), SECKILL_ORDER_CLAIM_BATCH);
+        Duration minIdle = Duration.ofSeconds(SECKILL_ORDER_CLAIM_IDLE);
+        byte[] streamKey = SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8);
+        for (PendingMessage message : pending) {
+            //还在本实例的分区队列中等待处理：积压时空闲时间可能超过minIdle、不认领
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0
+                    || inFlight.contains(message.getIdAsString())) {
+                continue;
+            }
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(streamKey, SECKILL_ORDER_GROUP, consumerName, minIdle, message.getId()));
+            if (claimed == null || claimed.isEmpty()) {
+                //已经被其他实例认领、或者消息已被删除
+                continue;
+            }
+            Map<String, String> value = toStringMap(claimed.get(0).getValue());
+            try {
+                if (message.getTotalDeliveryCount() >= SECKILL_ORDER_MAX_DELIVERIES) {
+                    log.error("订单投递{}次仍未成功、转入死信队列：{}", message.getTotalDeliveryCount(), value);
+                    stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_LETTER_STREAM, value);
+                    VoucherOrder voucherOrder = toVoucherOrder(value);
+                    seckillOrderStatus.complete(
+                            Collections.singletonMap(voucherOrder.getId(), voucherOrder.getUserId()), SeckillOrderStatus.FAILED);
+                } else {
+                    handleVoucherOrder(toVoucherOrder(value));
+                }
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, message.getId());
+            } catch (Exception e) {
+                log.error("处理pending-list中的订单异常：{}", value, e);
+            }
+        }
+    }
+
+    private static Map<String, String> toStringMap(Map<byte[], byte[]> value) {
+        Map<String, String> map = new HashMap<>(value.size() * 2);
+        value.forEach((k, v) -> map.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+        return map;
+    }
+
+    private static VoucherOrder toVoucherOrder(Map<?, ?> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        //seckill.lua写入的是id的时间戳和序列号：在这里拼接
+        if (voucherOrder.getId() == null && value.get("ts") != null && value.get("seq") != null) {
+            voucherOrder.setId(RedisIdWorker.compose(
+                    Long.parseLong(value.get("ts").toString()), Long.parseLong(value.get("seq").toString())));
+        }
+        return voucherOrder;
+    }
+
     /**
      * 调用创建订单
      * @param voucherOrder
      */
         private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            proxy.createVoucherOrder(voucherOrder);
+            List<VoucherOrder> orders = Collections.singletonList(voucherOrder);
+            completeOrderStatus(orders, proxy.createVoucherOrders(orders));
         }
 
+    /**
+     * 写入订单的处理结果：数据库中存在的订单为SUCCESS、被丢弃的（重复下单、库存不足）为FAILED
+     * @param orders
+     * @param persisted 数据库中存在的订单id
+     */
+    private void completeOrderStatus(List<VoucherOrder> orders, Set<Long> persisted) {
+        Map<Long, Long> success = new HashMap<>(orders.size() * 2);
+        Map<Long, Long> failed = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            (persisted.contains(order.getId()) ? success : failed).put(order.getId(), order.getUserId());
+        }
+        seckillOrderStatus.complete(success, SeckillOrderStatus.SUCCESS);
+        seckillOrderStatus.complete(failed, SeckillOrderStatus.FAILED);
+    }
+
+    /**
+     * 查询订单状态：优先查redis中的处理状态、状态过期后查数据库
+     * 长轮询：订单还在排队时最多等待waitSeconds秒、状态变化的广播到达后立即返回
+     * @param orderId
+     * @param waitSeconds 0表示立即返回
+     * @return
+     */
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, long waitSeconds) {
+        Long userId = UserHolder.getUser().getId();
+        long wait = Math.max(0, Math.min(waitSeconds, SECKILL_ORDER_STATUS_MAX_WAIT));
+        DeferredResult<Result> deferred = new DeferredResult<>(TimeUnit.SECONDS.toMillis(wait));
+        if (wait == 0) {
+            deferred.setResult(orderStatusResult(orderId, findOrderStatus(orderId, userId)));
+            return deferred;
+        }
+        //1、先注册监听再查询：查询和广播之间的状态变化不会丢失
+        java.util.function.Consumer<String> listener =
+                status -> deferred.setResult(orderStatusResult(orderId, status));
+        seckillOrderStatus.addListener(orderId, listener);
+        deferred.onCompletion(() -> seckillOrderStatus.removeListener(orderId, listener));
+        //2、超时：返回当前的状态（仍在排队）
+        deferred.onTimeout(() -> deferred.setResult(orderStatusResult(orderId, findOrderStatus(orderId, userId))));
+        //3、已经是最终状态、或者订单不存在：立即返回
+        String status = findOrderStatus(orderId, userId);
+        if (!SeckillOrderStatus.QUEUED.equals(status)) {
+            deferred.setResult(orderStatusResult(orderId, status));
+        }
+        return deferred;
+    }
+
+    /**
+     * 当前用户的订单状态
+     * @return 不是当前用户的订单、或者订单不存在时返回null
+     */
+    private String findOrderStatus(Long orderId, Long userId) {
+        Map<Object, Object> status = seckillOrderStatus.get(orderId);
+        if (!status.isEmpty()) {
+            return userId.toString().equals(status.get("userId")) ? (String) status.get("status") : null;
+        }
+        //状态已过期：订单早已处理完成、查数据库
+        VoucherOrder order = getById(orderId);
+        return order != null && userId.equals(order.getUserId()) ? SeckillOrderStatus.SUCCESS : null;
+    }
+
+    private static Result orderStatusResult(Long orderId, String status) {
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        Map<String, Object> map = new HashMap<>(4);
+        map.put("orderId", orderId);
+        map.put("status", status);
+        return Result.ok(map);
+    }
+
 
     /**
      * 优惠券秒杀
@@ -101,65 +403,151 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //获取用户
         Long userId = UserHolder.getUser().getId();
 
-        //1、执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),     //key类型参数
-                voucherId.toString(), userId.toString()
-        );
+        //0、本实例已经知道券卖完了：直接返回、不访问redis
+        if (seckillStockHints.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+
+        //1、执行lua脚本：判断购买资格、扣减库存、订单写入消息队列
+        //库存分片的热点券：按用户所属分片扣减
+        int r;
+        long orderId = 0;
+        Long remaining = null;
+        if (seckillStockShards.shardCount(voucherId) > 1) {
+            //订单id：分片秒杀跨多个脚本、需要先生成
+            orderId = redisIdWorker.nextId("order");
+            r = seckillStockShards.seckill(voucherId, userId, orderId);
+        } else {
+            //订单id的序列号在脚本中通过资格判断后才自增：被拒绝的请求不消耗id、也没有额外的网络往返
+            long timestamp = RedisIdWorker.timestamp();
+            List<?> result = scriptRegistry.execute(
+                    "seckill", List.class,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_ORDER_STREAM,
+                            RedisIdWorker.counterKey("order", timestamp)),
+                    voucherId.toString(), userId.toString(), String.valueOf(timestamp)
+            );
+            r = ((Long) result.get(0)).intValue();
+            remaining = (Long) result.get(1);
+            if (r == 0) {
+                orderId = RedisIdWorker.compose(timestamp, (Long) result.get(2));
+                //订单已经在消息队列中：消费者可能已经写入结果、只在没有状态时写入QUEUED
+                //写入失败不影响下单结果：消费者处理完成后仍会写入最终状态
+                try {
+                    seckillOrderStatus.queued(orderId, userId);
+                } catch (RuntimeException e) {
+                    log.warn("写入订单排队状态失败：{}", orderId, e);
+                }
+            }
+        }
         //2、判断结果是否为0
-        int r = result.intValue();
         if (r != 0) {
-            //2.1、不为0、没有购买资格
-            return Result.fail(r==1 ? "库存不足":"不能重复下单");
+            //2.1、不为0、没有购买资格：库存扣减为0时记录卖完、之后的请求在本地拒绝
+            //库存key不存在（r == 3）时不记录：任意的券id都会走到这里、不能为它们创建提示和广播
+            if (r == 1) {
+                seckillStockHints.markSoldOut(voucherId);
+            }
+            return Result.fail(r == 2 ? "不能重复下单" : "库存不足");
         }
-        //2.2、为0：有购买资格、将下单信息存到阻塞队列
-        //todo 将下单信息存到阻塞队列
-        // 7.创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 7.1.订单id
-        long orderId = redisIdWorker.nextId("order");
-        // 7.2.用户id
-        voucherOrder.setUserId(userId);
-        // 7.3.代金券id
-        voucherOrder.setVoucherId(voucherId);
-
-        //获取代理对象
-        proxy = (IVoucherOrderService)AopContext.currentProxy();
-
-        //将下单信息存到阻塞队列
-        orderTasks.add(voucherOrder);
-
-        //3、返回订单id
+        //最后一个库存被买走时直接标记卖完
+        seckillStockHints.onSuccess(voucherId, remaining);
+        //2.2、为0：有购买资格、订单已经写入消息队列、由消费者组异步创建订单
+
+        //3、返回订单id：客户端通过 GET /voucher-order/{id}/status 查询订单是否创建成功
         return Result.ok(orderId);
     }
 
 
     @Transactional
     public  void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 5.1.查询订单
-        Long count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        int c = count.intValue();
-        // 5.2.判断是否存在
-        if (c > 0) {
-            // 用户已经购买过了
-            log.error("用户已经购买过了");
-            return ;
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 批量创建订单：整批在一个事务中
+     * 1、一次查询过滤掉已经存在的订单（重复投递、或者用户已经购买过）
+     * 2、每张优惠券一条 stock = stock - k
+     * 3、一条多行INSERT写入所有订单
+     * @param voucherOrders
+     * @return 数据库中存在的订单id：本次写入的、和之前已经写入的（重复投递）
+     */
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> persisted = new HashSet<>(voucherOrders.size() * 2);
+        // 1.批次内去重：同一个用户对同一张优惠券只保留第一条
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size() * 2);
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            unique.putIfAbsent(orderKey(voucherOrder), voucherOrder);
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        // 2.一次查询数据库中已经存在的订单：按用户和优惠券过滤、再在内存中按（用户、优惠券）精确匹配
+        List<VoucherOrder> existing = query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        for (VoucherOrder order : existing) {
+            VoucherOrder duplicate = unique.remove(orderKey(order));
+            if (duplicate != null && duplicate.getId().equals(order.getId())) {
+                // 重复投递：订单已经写入
+                persisted.add(order.getId());
+            } else if (duplicate != null) {
+                // 用户已经购买过了
+                log.error("用户已经购买过了：userId={}, voucherId={}", order.getUserId(), order.getVoucherId());
+            }
+        }
+        if (unique.isEmpty()) {
+            return persisted;
+        }
+        // 3.按优惠券聚合扣减库存：按优惠券id顺序更新、多个实例并发时不会互相死锁
+        Map<Long, List<VoucherOrder>> byVoucher = new TreeMap<>();
+        for (VoucherOrder voucherOrder : unique.values()) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        List<VoucherOrder> toInsert = new ArrayList<>(unique.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int deducted = deductStock(entry.getKey(), orders.size());
+            if (deducted < orders.size()) {
+                // 扣减失败：redis和数据库的库存不一致、多出的订单丢弃
+                log.error("库存不足：voucherId={}, 丢弃{}个订单", entry.getKey(), orders.size() - deducted);
+            }
+            toInsert.addAll(orders.subList(0, deducted));
+        }
+        // 4.一条多行INSERT写入所有订单
+        if (!toInsert.isEmpty()) {
+            getBaseMapper().insertBatch(toInsert);
+        }
+        for (VoucherOrder voucherOrder : toInsert) {
+            persisted.add(voucherOrder.getId());
         }
+        return persisted;
+    }
 
-        // 6.扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1") // set stock = stock - 1
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) // where id = ? and stock > 0
-                .update();
-        if (!success) {
-            // 扣减失败
-            log.error("库存不足");
-            return ;
+    /**
+     * 扣减库存：set stock = stock - k where voucher_id = ? and stock >= k
+     * 库存不够k时按剩余库存扣减
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int count) {
+        int k = count;
+        while (k > 0) {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (success) {
+                return k;
+            }
+            // 库存不够整批扣减：查询剩余库存后重试
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            k = voucher == null ? 0 : Math.min(k, voucher.getStock());
         }
-        save(voucherOrder);
+        return 0;
+    }
 
+    private static String orderKey(VoucherOrder voucherOrder) {
+        return voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
     }
 
     /**
@@ -198,7 +586,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         //分布式锁
         //创建锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate, scriptRegistry);
 
         //todo Redisson实现分布式锁
         RLock lock = redissonClient.getLock("lock:order:" + userId);
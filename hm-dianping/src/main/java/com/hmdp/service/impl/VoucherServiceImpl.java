@@ -7,6 +7,7 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -32,6 +33,8 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,7 +57,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucherService.save(seckillVoucher);
 
         //todo 秒杀优化：基于redis完成秒杀资格的判断
-        //保存秒杀的库存到redis
+        //保存秒杀的库存到redis：热点券可以把库存拆到多个分片上
+        Integer shards = voucher.getStockShards();
+        if (shards != null && shards > 1) {
+            seckillStockShards.init(voucher.getId(), voucher.getStock(), shards);
+            return;
+        }
         stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId() , voucher.getStock().toString());
     }
 }
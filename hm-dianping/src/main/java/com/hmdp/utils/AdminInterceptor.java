@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.hmdp.utils.RedisConstants.ADMIN_USER_KEY;
+
+/**
+ * 管理接口的拦截器：在登录拦截器之后执行、只允许管理员访问/admin/**
+ * 管理员的用户id保存在redis的SET中（SADD admin:users {userId}）、修改后立即生效
+ * @author zyf
+ * @Data 2024/3/4 - 15:10
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public AdminInterceptor(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 管理员校验：没有登录返回401、不是管理员返回403
+     * @param request
+     * @param response
+     * @param handler
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1、获取登录用户
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        //2、判断是否是管理员
+        Boolean isAdmin = stringRedisTemplate.opsForSet().isMember(ADMIN_USER_KEY, user.getId().toString());
+        if (!Boolean.TRUE.equals(isAdmin)) {
+            response.setStatus(403);
+            return false;
+        }
+        //3、放行
+        return true;
+    }
+}
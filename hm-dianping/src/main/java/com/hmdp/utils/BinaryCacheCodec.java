@@ -0,0 +1,478 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制编解码器
+ * 数据格式：固定长度的数据头 + 按字段名排序依次写入的字段值
+ * <pre>
+ * magic(1) | 版本(1) | 标记位(1) | 类结构指纹(4) | 逻辑过期时间毫秒(8) | 重建耗时毫秒(4) | 原始数据长度(4) | 数据
+ * </pre>
+ * 类结构指纹由字段名和字段类型计算、实体类字段变化后旧数据按未命中处理
+ * 数据超过阈值时使用Deflater压缩（例如Blog.content这种大字段）
+ * @author zyf
+ * @Data 2024/2/23 - 14:20
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_COMPRESSED = 0x01;
+    private static final byte FLAG_LOGICAL_EXPIRE = 0x02;
+    private static final int HEADER_SIZE = 23;
+
+    //字段值的类型
+    private static final int T_STRING = 1, T_LONG = 2, T_DOUBLE = 3, T_FLOAT = 4, T_BOOLEAN = 5,
+            T_DATE_TIME = 6, T_DATE = 7, T_JSON = 8;
+
+    //类 -> 字段结构
+    private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    //超过这个长度才压缩
+    private final int compressThreshold;
+
+    public BinaryCacheCodec() {
+        this(1024);
+    }
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return isBinary(bytes);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, 0L, 0, false);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        Header header = readHeader(bytes, type);
+        if (header == null) {
+            return null;
+        }
+        return readBody(bytes, header, type);
+    }
+
+    @Override
+    public byte[] encodeWithLogicalExpire(RedisData redisData) {
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Long rebuildCost = redisData.getRebuildCost();
+        int cost = rebuildCost == null ? 0 : (int) Math.min(rebuildCost, Integer.MAX_VALUE);
+        return write(redisData.getData(), expireAt, cost, true);
+    }
+
+    @Override
+    public <R> RedisData decodeWithLogicalExpire(byte[] bytes, Class<R> type) {
+        Header header = readHeader(bytes, type);
+        if (header == null || (header.flags & FLAG_LOGICAL_EXPIRE) == 0) {
+            return null;
+        }
+        R r = readBody(bytes, header, type);
+        if (r == null) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(r);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(header.expireAt), ZoneId.systemDefault()));
+        redisData.setRebuildCost((long) header.rebuildCost);
+        return redisData;
+    }
+
+    private byte[] write(Object value, long expireAt, int rebuildCost, boolean logicalExpire) {
+        Schema schema = schemaOf(value.getClass());
+        //1、写入字段值
+        Buffer body = new Buffer(128);
+        try {
+            for (int i = 0; i < schema.fields.length; i++) {
+                Object fieldValue = schema.fields[i].get(value);
+                if (fieldValue == null) {
+                    body.writeByte(0);
+                    continue;
+                }
+                body.writeByte(1);
+                writeValue(body, schema.types[i], fieldValue);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] data = body.toByteArray();
+        int rawLength = data.length;
+        //2、超过阈值压缩
+        byte flags = logicalExpire ? FLAG_LOGICAL_EXPIRE : 0;
+        if (rawLength >= compressThreshold) {
+            byte[] compressed = deflate(data);
+            if (compressed.length < rawLength) {
+                data = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        //3、写入数据头
+        Buffer out = new Buffer(HEADER_SIZE + data.length);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeInt(schema.fingerprint);
+        out.writeLong(expireAt);
+        out.writeInt(rebuildCost);
+        out.writeInt(rawLength);
+        out.writeBytes(data, 0, data.length);
+        return out.toByteArray();
+    }
+
+    private Header readHeader(byte[] bytes, Class<?> type) {
+        if (!isBinary(bytes) || bytes[1] != VERSION) {
+            return null;
+        }
+        Header header = new Header();
+        header.flags = bytes[2];
+        Reader reader = new Reader(bytes, 3);
+        //类结构已经变化：按未命中处理
+        if (reader.readInt() != schemaOf(type).fingerprint) {
+            return null;
+        }
+        header.expireAt = reader.readLong();
+        header.rebuildCost = reader.readInt();
+        header.rawLength = reader.readInt();
+        return header;
+    }
+
+    private <R> R readBody(byte[] bytes, Header header, Class<R> type) {
+        byte[] data;
+        int offset;
+        if ((header.flags & FLAG_COMPRESSED) != 0) {
+            data = inflate(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, header.rawLength);
+            offset = 0;
+        } else {
+            data = bytes;
+            offset = HEADER_SIZE;
+        }
+        Schema schema = schemaOf(type);
+        Reader reader = new Reader(data, offset);
+        try {
+            R r = type.getDeclaredConstructor().newInstance();
+            for (int i = 0; i < schema.fields.length; i++) {
+                if (reader.readByte() == 0) {
+                    continue;
+                }
+                Field field = schema.fields[i];
+                field.set(r, readValue(reader, schema.types[i], field));
+            }
+            return r;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("反序列化失败：" + type.getName(), e);
+        }
+    }
+
+    private void writeValue(Buffer out, int type, Object value) {
+        switch (type) {
+            case T_STRING:
+                out.writeString((String) value);
+                break;
+            case T_LONG:
+                out.writeVarLong(((Number) value).longValue());
+                break;
+            case T_DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case T_FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case T_BOOLEAN:
+                out.writeByte((Boolean) value ? 1 : 0);
+                break;
+            case T_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            case T_DATE:
+                out.writeVarLong(((LocalDate) value).toEpochDay());
+                break;
+            default:
+                out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private Object readValue(Reader in, int type, Field field) {
+        Class<?> fieldType = field.getType();
+        switch (type) {
+            case T_STRING:
+                return in.readString();
+            case T_LONG:
+                long l = in.readVarLong();
+                if (fieldType == Long.class || fieldType == long.class) {
+                    return l;
+                }
+                if (fieldType == Integer.class || fieldType == int.class) {
+                    return (int) l;
+                }
+                if (fieldType == Short.class || fieldType == short.class) {
+                    return (short) l;
+                }
+                return (byte) l;
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case T_FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case T_BOOLEAN:
+                return in.readByte() != 0;
+            case T_DATE_TIME:
+                long seconds = in.readVarLong();
+                int nanos = (int) in.readVarLong();
+                return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            case T_DATE:
+                return LocalDate.ofEpochDay(in.readVarLong());
+            default:
+                return JSONUtil.toBean(JSONUtil.parse(in.readString()), field.getGenericType(), false);
+        }
+    }
+
+    private static Schema schemaOf(Class<?> type) {
+        return SCHEMAS.computeIfAbsent(type, Schema::new);
+    }
+
+    private static int typeOf(Class<?> c) {
+        if (c == String.class) {
+            return T_STRING;
+        }
+        if (c == Long.class || c == long.class || c == Integer.class || c == int.class
+                || c == Short.class || c == short.class || c == Byte.class || c == byte.class) {
+            return T_LONG;
+        }
+        if (c == Double.class || c == double.class) {
+            return T_DOUBLE;
+        }
+        if (c == Float.class || c == float.class) {
+            return T_FLOAT;
+        }
+        if (c == Boolean.class || c == boolean.class) {
+            return T_BOOLEAN;
+        }
+        if (c == LocalDateTime.class) {
+            return T_DATE_TIME;
+        }
+        if (c == LocalDate.class) {
+            return T_DATE;
+        }
+        return T_JSON;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length, int rawLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] out = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                n += inflater.inflate(out, n, rawLength - n);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("解压缓存数据失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static class Header {
+        byte flags;
+        long expireAt;
+        int rebuildCost;
+        int rawLength;
+    }
+
+    /**
+     * 类的字段结构：非static、非transient的字段按名称排序
+     */
+    private static class Schema {
+        final Field[] fields;
+        final int[] types;
+        final int fingerprint;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int mod = field.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            types = new int[fields.length];
+            StringBuilder sb = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = typeOf(fields[i].getType());
+                sb.append(';').append(fields[i].getName()).append(':').append(fields[i].getType().getName());
+            }
+            fingerprint = sb.toString().hashCode();
+        }
+    }
+
+    /**
+     * 可扩容的写缓冲区
+     */
+    private static class Buffer {
+        byte[] buf;
+        int size;
+
+        Buffer(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void ensure(int n) {
+            if (size + n > buf.length) {
+                byte[] bigger = new byte[Math.max(buf.length * 2, size + n)];
+                System.arraycopy(buf, 0, bigger, 0, size);
+                buf = bigger;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * zigzag + 变长编码：小数字只占1~2个字节
+         */
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[size++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            byte[] out = new byte[size];
+            System.arraycopy(buf, 0, out, 0, size);
+            return out;
+        }
+    }
+
+    private static class Reader {
+        final byte[] buf;
+        int pos;
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int len = (int) readVarLong();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
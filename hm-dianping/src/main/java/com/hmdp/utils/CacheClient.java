@@ -1,5 +1,6 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
@@ -7,16 +8,38 @@ import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -27,12 +50,365 @@ import static com.hmdp.utils.RedisConstants.*;
 
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
+    //lua脚本：hash_patch.lua
+    private final RedisScriptRegistry scriptRegistry;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //进程内一级缓存
+    private final LocalCache localCache = new LocalCache(CACHE_LOCAL_MAX_SIZE, TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL));
+    //开启了一级缓存的key前缀
+    private final Set<String> localCachePrefixes = ConcurrentHashMap.newKeySet();
+
+    //请求合并：同一个key的并发未命中只有一个线程查询数据库
+    private final SingleFlight singleFlight = new SingleFlight();
+    //堆外缓存：key前缀 -> 该前缀的堆外缓存
+    private final Map<String, OffHeapCache> offHeapCaches = new ConcurrentHashMap<>();
+
+    //互斥锁方案中等待其他实例重建完成的key
+    private final Map<String, CompletableFuture<Void>> rebuiltWaiters = new ConcurrentHashMap<>();
+
+    //重建线程池：按key去重、按访问频率排序、队列有上限
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    //编解码器：key前缀 -> 写入时使用的编解码器、没有配置的使用JSON
+    private final Map<String, CacheCodec> codecs = new ConcurrentHashMap<>();
+    private static final BinaryCacheCodec BINARY_CODEC = new BinaryCacheCodec();
+
+    //布隆过滤器：key前缀 -> 过滤器名称
+    private final RedisBloomFilter bloomFilter;
+    private final Map<String, String> bloomFilterNames = new ConcurrentHashMap<>();
+
+    //按key前缀统计的缓存指标
+    private final CacheMetrics metrics = new CacheMetrics();
+
+    //热点key探测：热点key即使所在前缀没有开启一级缓存、也会在本地保存一份短期副本
+    private final HotKeyDetector hotKeyDetector = new HotKeyDetector(HOT_KEY_SAMPLE_RATE, HOT_KEY_THRESHOLD,
+            HOT_KEY_MAX_SIZE, HOT_KEY_WINDOW_BUCKETS, TimeUnit.SECONDS.toMillis(HOT_KEY_BUCKET_SECONDS));
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisBloomFilter bloomFilter,
+                       CacheRebuildExecutor rebuildExecutor, RedisScriptRegistry scriptRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+        this.bloomFilter = bloomFilter;
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    /**
+     * 为某个key前缀开启布隆过滤器：查询缓存前先判断id是否存在
+     * @param keyPrefix
+     * @param filterName 在RedisBloomFilter中注册的过滤器名称
+     */
+    public void enableBloomFilter(String keyPrefix, String filterName){
+        bloomFilterNames.put(keyPrefix, filterName);
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在
+     */
+    private boolean bloomRejects(String keyPrefix, Object id){
+        String filterName = bloomFilterNames.get(keyPrefix);
+        if (filterName != null && !bloomFilter.mightContain(filterName, id)){
+            metrics.increment(keyPrefix, CacheMetrics.Event.BLOOM_REJECT);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 布隆过滤器放行、但数据库查不到：记录一次误判
+     */
+    private void recordBloomFalsePositive(String keyPrefix){
+        String filterName = bloomFilterNames.get(keyPrefix);
+        if (filterName != null){
+            bloomFilter.recordFalsePositive(filterName);
+        }
+    }
+
+    /**
+     * 为某个key前缀开启进程内一级缓存
+     * 一级缓存命中时返回的是共享的实例（type.cast、没有复制）：该前缀的查询结果只能读取、不能修改
+     * @param keyPrefix
+     */
+    public void enableLocalCache(String keyPrefix){
+        localCachePrefixes.add(keyPrefix);
+    }
+
+    /**
+     * 删除缓存：删除redis中的键、并通过发布订阅通知所有实例删除一级缓存
+     * @param key
+     */
+    public void evict(String key){
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        invalidateOffHeap(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 收到其他实例（包括自己）发出的通知：失效通知删除一级缓存、重建完成通知唤醒等待的线程
+     * @param message
+     * @param pattern
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        if (CACHE_REBUILT_CHANNEL.equals(channel)){
+            //缓存重建完成：唤醒等待这个key的线程
+            CompletableFuture<Void> rebuilt = rebuiltWaiters.remove(key);
+            if (rebuilt != null){
+                rebuilt.complete(null);
+            }
+            return;
+        }
+        localCache.invalidate(key);
+        invalidateOffHeap(key);
+    }
+
+    /**
+     * 一级缓存的统计信息
+     * @return
+     */
+    public Map<String, Object> getLocalCacheStats(){
+        Map<String, Object> stats = new HashMap<>();
+        long hit = localCache.getHitCount();
+        long miss = localCache.getMissCount();
+        stats.put("prefixes", localCachePrefixes);
+        stats.put("size", localCache.size());
+        stats.put("hitCount", hit);
+        stats.put("missCount", miss);
+        stats.put("evictionCount", localCache.getEvictionCount());
+        stats.put("hitRatio", hit + miss == 0 ? 0D : (double) hit / (hit + miss));
+        return stats;
+    }
+
+    /**
+     * 缓存指标：按key前缀的计数和耗时、重建线程池的队列长度和活跃线程数、一级缓存统计
+     * @return
+     */
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("prefixes", metrics.snapshot());
+        stats.put("rebuildExecutor", rebuildExecutor.getStats());
+        stats.put("localCache", getLocalCacheStats());
+        Map<String, Object> offHeap = new LinkedHashMap<>();
+        offHeapCaches.forEach((prefix, cache) -> offHeap.put(prefix, cache.getStats()));
+        stats.put("offHeap", offHeap);
+        return stats;
+    }
+
+    private boolean isLocalCacheEnabled(String keyPrefix){
+        return localCachePrefixes.contains(keyPrefix);
+    }
+
+    /**
+     * 本次查询是否使用一级缓存：前缀开启了一级缓存、或者这个key是热点
+     * 同时记录一次访问、用于热点探测
+     */
+    private boolean useLocalCache(String keyPrefix, String key){
+        boolean hot = hotKeyDetector.recordAndCheck(key);
+        return hot || isLocalCacheEnabled(keyPrefix);
+    }
+
+    /**
+     * 写入一级缓存：热点副本使用较短的过期时间、空值不超过空值的过期时间
+     */
+    private void putLocal(String keyPrefix, String key, Object value){
+        long ttl = isLocalCacheEnabled(keyPrefix)
+                ? TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL) : TimeUnit.SECONDS.toMillis(HOT_KEY_LOCAL_TTL);
+        if (value == null){
+            ttl = Math.min(ttl, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+        }
+        localCache.put(key, value, ttl);
+    }
+
+    /**
+     * 当前的热点key
+     * @return
+     */
+    public List<Map<String, Object>> getHotKeys(){
+        return hotKeyDetector.getHotKeys();
+    }
+
+    /**
+     * 为某个key前缀指定写入时的编解码器（默认JSON）
+     * 读取时根据数据头自动识别格式、切换编解码器不需要清空缓存
+     * @param keyPrefix
+     * @param codec
+     */
+    public void setCodec(String keyPrefix, CacheCodec codec){
+        codecs.put(keyPrefix, codec);
+    }
+
+    private CacheCodec codecForWrite(String key){
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                return entry.getValue();
+            }
+        }
+        return JsonCacheCodec.INSTANCE;
+    }
+
+    private CacheCodec codecForRead(String key, byte[] bytes){
+        CacheCodec codec = codecForWrite(key);
+        if (codec.supports(bytes)){
+            return codec;
+        }
+        return BINARY_CODEC.supports(bytes) ? BINARY_CODEC : JsonCacheCodec.INSTANCE;
+    }
+
+    /**
+     * 反序列化、数据格式不兼容时返回null
+     */
+    private <R> R decode(String keyPrefix, String key, byte[] bytes, Class<R> type){
+        long begin = System.nanoTime();
+        try {
+            R r = codecForRead(key, bytes).decode(bytes, type);
+            if (r == null){
+                metrics.increment(keyPrefix, CacheMetrics.Event.DECODE_FAILURE);
+            }
+            return r;
+        }catch (RuntimeException e){
+            metrics.increment(keyPrefix, CacheMetrics.Event.DECODE_FAILURE);
+            log.warn("缓存数据反序列化失败、按未命中处理：{}", key, e);
+            return null;
+        }finally {
+            metrics.record(keyPrefix, CacheMetrics.Timing.DECODE, System.nanoTime() - begin);
+        }
+    }
+
+    private <R> RedisData decodeWithLogicalExpire(String keyPrefix, String key, byte[] bytes, Class<R> type){
+        long begin = System.nanoTime();
+        try {
+            RedisData redisData = codecForRead(key, bytes).decodeWithLogicalExpire(bytes, type);
+            if (redisData == null){
+                metrics.increment(keyPrefix, CacheMetrics.Event.DECODE_FAILURE);
+            }
+            return redisData;
+        }catch (RuntimeException e){
+            metrics.increment(keyPrefix, CacheMetrics.Event.DECODE_FAILURE);
+            log.warn("缓存数据反序列化失败、按未命中处理：{}", key, e);
+            return null;
+        }finally {
+            metrics.record(keyPrefix, CacheMetrics.Timing.DECODE, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 一级缓存命中时记录指标
+     */
+    private Object getLocal(String keyPrefix, String key){
+        Object local = localCache.get(key);
+        if (local != null){
+            metrics.increment(keyPrefix, CacheMetrics.Event.LOCAL_HIT);
+        }
+        return local;
+    }
+
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取原始字节：不存在返回null、缓存的空值返回空数组
+     * 开启了堆外缓存的前缀先查堆外缓存、再查redis
+     */
+    private byte[] getRaw(String key){
+        byte[] cached = withOffHeap(key, OffHeapCache::get);
+        if (cached != null){
+            return cached;
+        }
+        byte[] bytes = getRawFromRedis(key);
+        if (bytes != null){
+            withOffHeap(key, (cache, id) -> {
+                cache.put(id, bytes);
+                return null;
+            });
+        }
+        return bytes;
+    }
+
+    /**
+     * 逻辑过期（或需要提前刷新）的数据可能来自堆外缓存中的旧副本：其他实例可能已经重建、重新读取redis
+     * 否则本实例在堆外副本过期之前会反复提交重建、查询数据库
+     * @return redis中更新过的数据：没有开启堆外缓存、redis中没有数据或数据没有变化时返回null
+     */
+    private <R> RedisData reloadFromRedis(String keyPrefix, String key, byte[] bytes, Class<R> type){
+        if (withOffHeap(key, (cache, id) -> Boolean.TRUE) == null){
+            return null;
+        }
+        byte[] latest = getRawFromRedis(key);
+        if (latest == null || latest.length == 0 || Arrays.equals(latest, bytes)){
+            return null;
+        }
+        withOffHeap(key, (cache, id) -> {
+            cache.put(id, latest);
+            return null;
+        });
+        return decodeWithLogicalExpire(keyPrefix, key, latest, type);
+    }
+
+    /**
+     * 直接读取redis、不经过堆外缓存
+     */
+    private byte[] getRawFromRedis(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration){
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+        withOffHeap(key, (cache, id) -> {
+            cache.put(id, value);
+            return null;
+        });
+    }
+
+    /**
+     * 为某个key前缀开启堆外缓存：作为一级缓存和redis之间的一层、保存redis中的原始字节
+     * 只能用于前缀之后是数字id的key
+     * @param keyPrefix
+     * @param capacityBytes 堆外内存的容量（字节）
+     */
+    public void enableOffHeapCache(String keyPrefix, long capacityBytes){
+        offHeapCaches.put(keyPrefix, new OffHeapCache(capacityBytes, CACHE_OFFHEAP_SEGMENTS,
+                TimeUnit.SECONDS.toMillis(CACHE_OFFHEAP_TTL)));
+    }
+
+    /**
+     * key所属前缀开启了堆外缓存、并且前缀之后是数字id时执行action
+     * @return action的结果、不满足条件时返回null
+     */
+    private <T> T withOffHeap(String key, BiFunction<OffHeapCache, Long, T> action){
+        if (offHeapCaches.isEmpty()){
+            return null;
+        }
+        for (Map.Entry<String, OffHeapCache> entry : offHeapCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                String id = key.substring(entry.getKey().length());
+                if (id.isEmpty() || !StrUtil.isNumeric(id) || id.length() > 18){
+                    return null;
+                }
+                return action.apply(entry.getValue(), Long.parseLong(id));
+            }
+        }
+        return null;
+    }
+
+    private void invalidateOffHeap(String key){
+        withOffHeap(key, (cache, id) -> {
+            cache.invalidate(id);
+            return null;
+        });
+    }
+
+    /**
+     * 缓存空值：解决缓存穿透
+     */
+    private void setNull(String key){
+        setRaw(key, new byte[0], Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
     }
 
 
@@ -45,8 +421,9 @@ public class CacheClient {
      */
     public void set(String key , Object value , Long time , TimeUnit unit){
         //time:键的TTL时间值     unit：时间的单位
-        //传的是object的value、放到redis要序列化：JSONUtil.toJsonStr(value
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        //传的是object的value、放到redis要序列化：由key前缀对应的编解码器决定格式、默认JSON
+        //todo 为redis缓存的ttl添加一个随机数、防止缓存雪崩
+        setRaw(key, codecForWrite(key).encode(value), Expiration.milliseconds(jitter(time, unit)));
     }
 
     /**
@@ -57,13 +434,81 @@ public class CacheClient {
      * @param unit
      */
     public void setWithLogicalExpire(String key,Object data,Long time,TimeUnit unit){
-        //设置逻辑过期时间
+        setWithLogicalExpire(key, data, time, unit, null, null);
+    }
+
+    /**
+     * 写入带逻辑过期时间的数据
+     * @param rebuildCost 重建耗时（毫秒）、用于提前刷新
+     * @param physicalMillis redis中真实的过期时间（毫秒）、为null时不过期
+     */
+    private void setWithLogicalExpire(String key, Object data, Long time, TimeUnit unit, Long rebuildCost, Long physicalMillis){
+        //设置逻辑过期时间、不知道传过来的是什么单位：选择统一将单位转换为秒
+        //过期时间加上随机数：同一批预热的数据不会同时过期
         RedisData redisData = new RedisData();
         redisData.setData(data);
-        //设置过期时间、不知道传过来的是什么单位：选择统一将单位转换为秒
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(time, unit), ChronoUnit.MILLIS));
+        redisData.setRebuildCost(rebuildCost);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        byte[] value = codecForWrite(key).encodeWithLogicalExpire(redisData);
+        if (physicalMillis == null){
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey(key), value));
+            withOffHeap(key, (cache, id) -> {
+                cache.put(id, value);
+                return null;
+            });
+        }else {
+            setRaw(key, value, Expiration.milliseconds(physicalMillis));
+        }
+    }
+
+    /**
+     * 批量写入带逻辑过期时间的数据（管道）：用于缓存预热
+     * @param values key -> 数据
+     * @param time 逻辑过期时间的值
+     * @param unit 逻辑过期时间的单位
+     * @param refreshAhead 是否为提前刷新模式写入：redis中的数据会在逻辑过期时间之后真正过期
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit, boolean refreshAhead){
+        Map<byte[], byte[]> encoded = new HashMap<>(values.size() * 2);
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            invalidateOffHeap(entry.getKey());
+            RedisData redisData = new RedisData();
+            redisData.setData(entry.getValue());
+            redisData.setExpireTime(LocalDateTime.now().plus(jitter(time, unit), ChronoUnit.MILLIS));
+            encoded.put(rawKey(entry.getKey()), codecForWrite(entry.getKey()).encodeWithLogicalExpire(redisData));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<byte[], byte[]> entry : encoded.entrySet()) {
+                if (refreshAhead){
+                    connection.set(entry.getKey(), entry.getValue(),
+                            Expiration.milliseconds(graceMillis(time, unit)),
+                            RedisStringCommands.SetOption.upsert());
+                }else {
+                    connection.set(entry.getKey(), entry.getValue());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 为过期时间加上0~10%的随机数
+     * 按毫秒计算：不足1秒的过期时间按秒截断会变成0、写入后立即过期
+     * @return 毫秒、至少1毫秒
+     */
+    private static long jitter(Long time, TimeUnit unit){
+        long millis = Math.max(1, unit.toMillis(time));
+        long bound = (long) (millis * CACHE_TTL_JITTER) + 1;
+        return millis + ThreadLocalRandom.current().nextLong(bound);
+    }
+
+    /**
+     * 提前刷新模式下redis中真实的过期时间：逻辑过期时间的CACHE_REFRESH_AHEAD_GRACE倍
+     * @return 毫秒、至少1毫秒
+     */
+    private static long graceMillis(Long time, TimeUnit unit){
+        return Math.max(1, unit.toMillis(time)) * CACHE_REFRESH_AHEAD_GRACE;
     }
 
     /**
@@ -80,51 +525,487 @@ public class CacheClient {
     public <R,ID> R queryWithPassThrough(
             String keyPrefix , ID id , Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix+id;  //为id添加前缀整体作为key
+        //0、先查一级缓存、命中则不需要访问redis
+        boolean useLocal = useLocalCache(keyPrefix, key);
+        if (useLocal){
+            Object local = getLocal(keyPrefix, key);
+            if (local == LocalCache.NULL_VALUE){
+                return null;
+            }
+            if (local != null){
+                return type.cast(local);
+            }
+        }
+        //0.1、布隆过滤器判断id一定不存在：直接返回、不访问redis和数据库、也不需要缓存空值
+        if (bloomRejects(keyPrefix, id)){
+            return null;
+        }
         //1、从redis缓存查询是否有数据
         /*
         这里选择用id作为redis的key、商铺信息作为value、id保证了数据唯一性
         同时、因为使用的是stringRedisTemplate，返回的是string
         需要先将其反序列化为Shop对象
          */
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         //2、如果有，直接返回数据、这里的判断时是判断是否有具体值、而如果为空值、则跳过
-        if (StrUtil.isNotBlank(json)){
-             //对象的反序列化
-            return JSONUtil.toBean(json, type);
-        }
-
-        //todo 缓存穿透问题：判断缓存命中
-        if (json != null){  //上面的if判断完、此时的对象有两种可能：没有命中或空值
+        if (bytes != null && bytes.length > 0){
+             //对象的反序列化、数据格式不兼容时当作未命中、重新查询数据库覆盖
+            R r = decode(keyPrefix, key, bytes, type);
+            if (r != null){
+                metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+                if (useLocal){
+                    putLocal(keyPrefix, key, r);
+                }
+                return r;
+            }
+        }else if (bytes != null){
+            //todo 缓存穿透问题：判断缓存命中
+            //上面的if判断完、此时的对象有两种可能：没有命中或空值
             //空值
+            metrics.increment(keyPrefix, CacheMetrics.Event.NULL_HIT);
+            if (useLocal){
+                putLocal(keyPrefix, key, null);
+            }
             return null;
         }
+        metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
 
         //3、如果没有，查询数据库
-        //Shop shop = this.getById(id); //这里根据不同的对象类型数据库的操作方法不同、因此无法在这里进行具体操作
-        R r = dbFallback.apply(id);
-        //4、数据库是否能查到数据：如果查不到、说明没有数据
+        //todo 请求合并：同一个key的并发未命中只有一个线程查询数据库并写回缓存、其他线程共享结果
+        R r = singleFlight.execute(key, () -> {
+            //Shop shop = this.getById(id); //这里根据不同的对象类型数据库的操作方法不同、因此无法在这里进行具体操作
+            long begin = System.nanoTime();
+            R dbValue = dbFallback.apply(id);
+            metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, System.nanoTime() - begin);
+            //4、数据库是否能查到数据：如果查不到、说明没有数据
+            if (dbValue == null){
+                recordBloomFalsePositive(keyPrefix);
+                //todo 解决缓存穿透的问题：使用缓存空对象
+                setNull(key);
+                //todo 为redis缓存的ttl添加一个随机数、防止缓存雪崩
+                //stringRedisTemplate.opsForValue().set(key,null,CACHE_NULL_TTL+Long.getLong(RandomUtil.randomNumbers(6)), TimeUnit.MINUTES);
+                return null;
+            }
+
+            //5、如果查到数据：将数据添加到redis缓存中
+            //实现了缓存更新策略的读操作（没有修改）：使用超时剔除方案、添加一个超时时间
+            //todo 缓存更新策略
+            this.set(key,dbValue,time,unit);
+            if (useLocal){
+                putLocal(keyPrefix, key, dbValue);
+            }
+            return dbValue;
+        });
+        //6、返回数据
+        return r;
+    }
+    /**
+     * 互斥锁解决缓存击穿：未命中时只有获取到分布式锁的实例查询数据库
+     * 1、本实例内同一个key的并发未命中由SingleFlight合并、其他线程等待同一个结果
+     * 2、没有获取到锁的实例订阅重建完成的通知、收到通知后立即读取redis、不再休眠轮询
+     * 3、等待超时（持有锁的实例异常）时直接查询数据库返回、不写入缓存
+     * @param keyPrefix key的前缀
+     * @param id
+     * @param type 需要操作的对象类型
+     * @param dbFallback 一个存放数据库操作逻辑的函数
+     * @param time  设置过期时间的值
+     * @param unit  设置过期时间的单位
+     * @return
+     * @param <R>
+     */
+    public <R,ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //1、一级缓存
+        boolean useLocal = useLocalCache(keyPrefix, key);
+        if (useLocal){
+            Object local = getLocal(keyPrefix, key);
+            if (local == LocalCache.NULL_VALUE){
+                return null;
+            }
+            if (local != null){
+                return type.cast(local);
+            }
+        }
+        //2、布隆过滤器
+        if (bloomRejects(keyPrefix, id)){
+            return null;
+        }
+        //3、查询redis：命中直接返回
+        CacheLookup<R> cached = lookup(keyPrefix, key, type, false);
+        if (cached != null){
+            if (useLocal){
+                putLocal(keyPrefix, key, cached.value);
+            }
+            return cached.value;
+        }
+        metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
+
+        //4、未命中：本实例内合并、再由分布式锁决定哪个实例查询数据库
+        R r = singleFlight.execute(key, () -> loadWithMutex(keyPrefix, key, type, () -> dbFallback.apply(id), time, unit));
+        if (useLocal){
+            putLocal(keyPrefix, key, r);
+        }
+        return r;
+    }
+
+    /**
+     * 读取并反序列化redis中的值
+     * @param fresh 是否跳过堆外缓存、直接读取redis
+     * @return 未命中（或数据不兼容）返回null、命中空值时返回value为null的结果
+     */
+    private <R> CacheLookup<R> lookup(String keyPrefix, String key, Class<R> type, boolean fresh){
+        byte[] bytes = fresh ? getRawFromRedis(key) : getRaw(key);
+        if (bytes == null){
+            return null;
+        }
+        if (bytes.length == 0){
+            metrics.increment(keyPrefix, CacheMetrics.Event.NULL_HIT);
+            return new CacheLookup<>(null);
+        }
+        R r = decode(keyPrefix, key, bytes, type);
         if (r == null){
-            //todo 解决缓存穿透的问题：使用缓存空对象
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            //todo 为redis缓存的ttl添加一个随机数、防止缓存雪崩
-            //stringRedisTemplate.opsForValue().set(key,null,CACHE_NULL_TTL+Long.getLong(RandomUtil.randomNumbers(6)), TimeUnit.MINUTES);
             return null;
         }
+        metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+        return new CacheLookup<>(r);
+    }
+
+    private static class CacheLookup<R> {
+        final R value;
+
+        CacheLookup(R value) {
+            this.value = value;
+        }
+    }
 
-        //5、如果查到数据：将数据添加到redis缓存中
-        //String jsonStr = JSONUtil.toJsonStr(shop);  //将user对象序列化为json
-        // stringRedisTemplate.opsForValue().set(key,jsonStr);
+    private <R> R loadWithMutex(String keyPrefix, String key, Class<R> type, Supplier<R> loader, Long time, TimeUnit unit){
+        String lockKey = LOCK_KEY_PREFIX + key;
+        if (tryLock(lockKey)){
+            try {
+                //a、获取到锁：二次检查、其他实例可能刚刚重建完成
+                CacheLookup<R> cached = lookup(keyPrefix, key, type, true);
+                if (cached != null){
+                    return cached.value;
+                }
+                //b、查询数据库、写入redis
+                long begin = System.nanoTime();
+                R r = loader.get();
+                metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, System.nanoTime() - begin);
+                if (r == null){
+                    recordBloomFalsePositive(keyPrefix);
+                    setNull(key);
+                }else {
+                    set(key, r, time, unit);
+                }
+                //c、通知等待中的实例
+                stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                return r;
+            }finally {
+                unlock(lockKey);
+            }
+        }
+        //没有获取到锁：等待重建完成的通知
+        metrics.increment(keyPrefix, CacheMetrics.Event.LOCK_FAILURE);
+        CompletableFuture<Void> rebuilt = rebuiltWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            //先注册再检查一次：通知可能在注册之前已经发出
+            CacheLookup<R> cached = lookup(keyPrefix, key, type, true);
+            if (cached != null){
+                return cached.value;
+            }
+            rebuilt.get(CACHE_MUTEX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            cached = lookup(keyPrefix, key, type, true);
+            if (cached != null){
+                return cached.value;
+            }
+        }catch (TimeoutException e){
+            log.warn("等待缓存重建超时、直接查询数据库：{}", key);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException e){
+            log.warn("等待缓存重建失败：{}", key, e);
+        }finally {
+            rebuiltWaiters.remove(key, rebuilt);
+        }
+        //兜底：持有锁的实例没有在限定时间内完成、直接查询数据库
+        return loader.get();
+    }
 
-        //实现了缓存更新策略的读操作（没有修改）：使用超时剔除方案、添加一个超时时间
-        //todo 缓存更新策略
-        //stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(r),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        this.set(key,r,time,unit);
-        //6、返回数据
-        return r;
+    /**
+     * 批量查询（缓存穿透方案）：一次MGET查redis、未命中的id合并成一次数据库查询、再用管道批量写回
+     * @param keyPrefix key的前缀
+     * @param ids 需要查询的id集合
+     * @param type 需要操作的对象类型
+     * @param dbFallback 批量查询数据库的函数：传入未命中的id、返回id到对象的映射
+     * @param time  设置过期时间的值
+     * @param unit  设置过期时间的单位
+     * @return 按ids的顺序返回查到的对象、不存在的id会被跳过
+     * @param <R>
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        if (ids == null || ids.isEmpty()){
+            return new ArrayList<>();
+        }
+        boolean useLocal = isLocalCacheEnabled(keyPrefix);
+        //id -> 查询结果、保持传入顺序
+        Map<ID, R> found = new LinkedHashMap<>(ids.size() * 2);
+        //1、先查一级缓存、剩下的去redis查
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object local = useLocal ? getLocal(keyPrefix, keyPrefix + id) : null;
+            if (local == null){
+                //布隆过滤器判断不存在的id直接跳过
+                if (!bloomRejects(keyPrefix, id)){
+                    redisIds.add(id);
+                }
+            }else if (local != LocalCache.NULL_VALUE){
+                found.put(id, type.cast(local));
+            }
+        }
+
+        //2、一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()){
+            byte[][] keys = new byte[redisIds.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rawKey(keyPrefix + redisIds.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes != null && bytes.length == 0){
+                    //空值：缓存的不存在的id、跳过
+                    metrics.increment(keyPrefix, CacheMetrics.Event.NULL_HIT);
+                    continue;
+                }
+                R r = bytes == null ? null : decode(keyPrefix, keyPrefix + id, bytes, type);
+                if (r == null){
+                    //没有命中、或者数据格式不兼容
+                    metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
+                    missIds.add(id);
+                    continue;
+                }
+                metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+                found.put(id, r);
+                if (useLocal){
+                    localCache.put(keyPrefix + id, r);
+                }
+            }
+        }
+
+        //3、未命中的id合并成一次数据库查询
+        if (!missIds.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> dbResult = dbFallback.apply(missIds);
+            long nanos = System.nanoTime() - begin;
+            metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, nanos);
+            if (dbResult == null){
+                dbResult = new HashMap<>();
+            }
+            //4、管道批量写回redis：查不到的id写入空值、防止缓存穿透
+            Map<String, byte[]> toCache = new HashMap<>(missIds.size() * 2);
+            for (ID id : missIds) {
+                R r = dbResult.get(id);
+                String key = keyPrefix + id;
+                if (r == null){
+                    toCache.put(key, new byte[0]);
+                }else {
+                    toCache.put(key, codecForWrite(key).encode(r));
+                }
+                invalidateOffHeap(key);
+                if (r != null){
+                    found.put(id, r);
+                    if (useLocal){
+                        localCache.put(keyPrefix + id, r);
+                    }
+                }else {
+                    recordBloomFalsePositive(keyPrefix);
+                }
+            }
+            Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<String, byte[]> entry : toCache.entrySet()) {
+                    boolean isNull = entry.getValue().length == 0;
+                    //过期时间加上随机数、防止同一批写入的数据同时过期
+                    connection.set(rawKey(entry.getKey()), entry.getValue(),
+                            isNull ? nullTtl : Expiration.milliseconds(jitter(time, unit)),
+                            RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        }
+
+        //5、按传入顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null){
+                result.add(r);
+            }
+        }
+        return result;
     }
-    //创建一个线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+
+    //hash缓存的标记字段：1表示数据存在、0表示缓存的空值、不存在表示未命中
+    private static final String HASH_PRESENT_FIELD = "_";
+
+    /**
+     * hash缓存模式的批量查询：每个对象存为一个hash、字段名与实体属性名一致
+     * 只用HMGET读取需要的字段（投影）、未命中的id合并成一次数据库查询、再用管道写入完整的hash
+     * 只写入不为空的属性、数值以十进制字符串保存：字段少且值短的hash由redis以紧凑编码（listpack）保存
+     * @param keyPrefix key的前缀
+     * @param ids 需要查询的id集合
+     * @param type 需要操作的对象类型
+     * @param fields 需要读取的属性
+     * @param dbFallback 批量查询数据库的函数：传入未命中的id、返回id到对象的映射
+     * @param time  设置过期时间的值
+     * @param unit  设置过期时间的单位
+     * @return 按ids的顺序返回只填充了fields属性的对象、不存在的id会被跳过
+     * @param <R>
+     */
+    public <R,ID> List<R> queryHashBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, List<String> fields,
+            Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        if (ids == null || ids.isEmpty()){
+            return new ArrayList<>();
+        }
+        //1、布隆过滤器判断不存在的id直接跳过
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (!bloomRejects(keyPrefix, id)){
+                redisIds.add(id);
+            }
+        }
+        //2、管道批量HMGET：第一个字段是标记字段
+        byte[][] rawFields = new byte[fields.size() + 1][];
+        rawFields[0] = rawKey(HASH_PRESENT_FIELD);
+        for (int i = 0; i < fields.size(); i++) {
+            rawFields[i + 1] = rawKey(fields.get(i));
+        }
+        List<Object> values = redisIds.isEmpty() ? Collections.emptyList()
+                : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : redisIds) {
+                        connection.hMGet(rawKey(keyPrefix + id), rawFields);
+                    }
+                    return null;
+                });
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < redisIds.size(); i++) {
+            ID id = redisIds.get(i);
+            @SuppressWarnings("unchecked")
+            List<String> row = (List<String>) values.get(i);
+            String present = row == null ? null : row.get(0);
+            if (present == null){
+                metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
+                missIds.add(id);
+            }else if ("0".equals(present)){
+                metrics.increment(keyPrefix, CacheMetrics.Event.NULL_HIT);
+            }else {
+                metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+                Map<String, String> map = new HashMap<>(fields.size() * 2);
+                for (int j = 0; j < fields.size(); j++) {
+                    if (row.get(j + 1) != null){
+                        map.put(fields.get(j), row.get(j + 1));
+                    }
+                }
+                found.put(id, BeanUtil.toBean(map, type));
+            }
+        }
+
+        //3、未命中的id合并成一次数据库查询、管道写入完整的hash
+        if (!missIds.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> dbResult = dbFallback.apply(missIds);
+            metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, System.nanoTime() - begin);
+            if (dbResult == null){
+                dbResult = new HashMap<>();
+            }
+            Map<String, Map<String, String>> toCache = new HashMap<>(missIds.size() * 2);
+            for (ID id : missIds) {
+                R r = dbResult.get(id);
+                Map<String, String> hash = r == null ? new HashMap<>() : toHash(r);
+                hash.put(HASH_PRESENT_FIELD, r == null ? "0" : "1");
+                toCache.put(keyPrefix + id, hash);
+                if (r == null){
+                    recordBloomFalsePositive(keyPrefix);
+                    continue;
+                }
+                //与命中时一样只返回需要的属性
+                Map<String, String> projection = new HashMap<>(fields.size() * 2);
+                for (String field : fields) {
+                    if (hash.containsKey(field)){
+                        projection.put(field, hash.get(field));
+                    }
+                }
+                found.put(id, BeanUtil.toBean(projection, type));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<String, Map<String, String>> entry : toCache.entrySet()) {
+                    byte[] key = rawKey(entry.getKey());
+                    Map<byte[], byte[]> hash = new HashMap<>(entry.getValue().size() * 2);
+                    entry.getValue().forEach((field, value) -> hash.put(rawKey(field), rawKey(value)));
+                    boolean isNull = "0".equals(entry.getValue().get(HASH_PRESENT_FIELD));
+                    //先删除：属性变为空值后不会残留旧字段
+                    connection.del(key);
+                    connection.hMSet(key, hash);
+                    connection.pExpire(key, isNull ? TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL) : jitter(time, unit));
+                }
+                return null;
+            });
+        }
+
+        //4、按传入顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null){
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 修改hash缓存中的部分字段：只写入changes中不为空的属性
+     * 缓存不存在时不写入、下一次查询会从数据库加载完整的数据
+     * @param key
+     * @param changes 只包含修改了的属性的对象
+     * @return 缓存存在并且修改成功返回true
+     */
+    public boolean patchHash(String key, Object changes){
+        Map<String, String> hash = toHash(changes);
+        if (hash.isEmpty()){
+            return true;
+        }
+        Object[] args = new Object[hash.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            args[i++] = entry.getKey();
+            args[i++] = entry.getValue();
+        }
+        Long result = scriptRegistry.execute("hash_patch", Long.class, Collections.singletonList(key), args);
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 对象转为hash：跳过为空的属性、值统一转为字符串
+     */
+    private static Map<String, String> toHash(Object bean){
+        Map<String, String> hash = new HashMap<>();
+        BeanUtil.beanToMap(bean).forEach((field, value) -> {
+            if (value != null){
+                hash.put(field, value.toString());
+            }
+        });
+        return hash;
+    }
+
     /**
      * 逻辑过期实现缓存击穿
      * @param id
@@ -138,16 +1019,22 @@ public class CacheClient {
         同时、因为使用的是stringRedisTemplate，返回的是string
         需要先将其反序列化为Shop对象
          */
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         //2、逻辑过期：如果未命中、返回空
-        if (StrUtil.isBlank(json)){
+        if (bytes == null || bytes.length == 0){
+            metrics.increment(keyPrefix, bytes == null ? CacheMetrics.Event.MISS : CacheMetrics.Event.NULL_HIT);
             return null;
         }
 
-        //3、命中、（JSON反序列化）、判断缓存是否过期
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //3、命中、（反序列化）、判断缓存是否过期
+        RedisData redisData = decodeWithLogicalExpire(keyPrefix, key, bytes, type);
+        if (redisData == null){
+            metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
+            return null;
+        }
+        metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+        R r = type.cast(redisData.getData());
 
         //获取设置的过期时间
         LocalDateTime expireTime = redisData.getExpireTime();
@@ -157,36 +1044,165 @@ public class CacheClient {
         if (expireTime.isAfter(LocalDateTime.now())){
             return r;
         }
+        //3.2、堆外缓存中的副本过期：其他实例可能已经重建、以redis为准
+        RedisData latest = reloadFromRedis(keyPrefix, key, bytes, type);
+        if (latest != null && latest.getExpireTime().isAfter(LocalDateTime.now())){
+            return type.cast(latest.getData());
+        }
+
+        //4、过期、缓存重建：获取互斥锁、开启独立线程重建
+        rebuildAsync(keyPrefix, key, () -> dbFallback.apply(id), time, unit, null);
+        //4.3、返回逻辑过期数据
+        return r;
+    }
 
-        //4、过期、缓存重建：获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //4.1、判断是否获取到锁
-        if(isLock) {
-
-            //4.2、如果获取到锁、开启独立线程、返回逻辑过期数据、返回逻辑过期时间
-            //线程池对象
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //重建缓存、缓存插入的不再是shop、而是redisData
-                   // this.saveShop2Redis(id, 20L);
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
+    /**
+     * 提前刷新（refresh-ahead）：基于XFetch算法在过期前按概率提前重建缓存
+     * 距离逻辑过期时间越近、上一次重建耗时越长、提前刷新的概率越大
+     * 触发刷新的请求照常返回旧数据、由重建线程池在后台查询数据库
+     * redis中的数据保留到逻辑过期时间之后（CACHE_REFRESH_AHEAD_GRACE倍）、冷数据最终会自然过期
+     * @param keyPrefix key的前缀
+     * @param id
+     * @param type 需要操作的对象类型
+     * @param dbFallback 一个存放数据库操作逻辑的函数
+     * @param time  逻辑过期时间的值
+     * @param unit  逻辑过期时间的单位
+     * @return
+     * @param <R>
+     */
+    public <R,ID> R queryWithRefreshAhead(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //1、一级缓存
+        boolean useLocal = useLocalCache(keyPrefix, key);
+        if (useLocal){
+            Object local = getLocal(keyPrefix, key);
+            if (local == LocalCache.NULL_VALUE){
+                return null;
+            }
+            if (local != null){
+                return type.cast(local);
+            }
+        }
+        //2、布隆过滤器
+        if (bloomRejects(keyPrefix, id)){
+            return null;
+        }
+        //3、查询redis
+        byte[] bytes = getRaw(key);
+        if (bytes != null && bytes.length == 0){
+            //空值
+            metrics.increment(keyPrefix, CacheMetrics.Event.NULL_HIT);
+            if (useLocal){
+                putLocal(keyPrefix, key, null);
+            }
+            return null;
+        }
+        RedisData redisData = bytes == null ? null : decodeWithLogicalExpire(keyPrefix, key, bytes, type);
+
+        //4、未命中：同步查询数据库、记录重建耗时
+        if (redisData == null){
+            metrics.increment(keyPrefix, CacheMetrics.Event.MISS);
+            return singleFlight.execute(key, () -> {
+                R dbValue = loadForRefreshAhead(keyPrefix, key, () -> dbFallback.apply(id), time, unit);
+                if (dbValue == null){
+                    recordBloomFalsePositive(keyPrefix);
+                }else if (useLocal){
+                    putLocal(keyPrefix, key, dbValue);
                 }
+                return dbValue;
             });
         }
-        //4.3、返回逻辑过期数据
+
+        //5、命中：按概率判断是否需要提前刷新
+        metrics.increment(keyPrefix, CacheMetrics.Event.HIT);
+        R r = type.cast(redisData.getData());
+        if (shouldRefreshEarly(redisData)){
+            //堆外缓存中的副本可能已经被其他实例刷新过：以redis为准再判断一次
+            RedisData latest = reloadFromRedis(keyPrefix, key, bytes, type);
+            if (latest != null){
+                r = type.cast(latest.getData());
+            }
+            if (latest == null || shouldRefreshEarly(latest)){
+                rebuildAsync(keyPrefix, key, () -> dbFallback.apply(id), time, unit, graceMillis(time, unit));
+            }
+        }
+        if (useLocal){
+            putLocal(keyPrefix, key, r);
+        }
         return r;
     }
 
+    /**
+     * XFetch：now - delta * beta * ln(random) >= expiry 时提前刷新
+     * delta为上一次重建耗时、ln(random)为负数、越接近过期时间越容易触发
+     */
+    private boolean shouldRefreshEarly(RedisData redisData){
+        //没有逻辑过期时间：立即刷新
+        if (redisData.getExpireTime() == null){
+            return true;
+        }
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Long rebuildCost = redisData.getRebuildCost();
+        long delta = rebuildCost == null ? 0 : rebuildCost;
+        double random = ThreadLocalRandom.current().nextDouble();
+        //random可能为0、避免ln(0)
+        double gap = -delta * CACHE_XFETCH_BETA * Math.log(Math.max(random, Double.MIN_VALUE));
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    /**
+     * 查询数据库并写入redis：记录重建耗时、redis中的数据比逻辑过期时间多保留一段时间
+     */
+    private <R> R loadForRefreshAhead(String keyPrefix, String key, Supplier<R> loader, Long time, TimeUnit unit){
+        long begin = System.nanoTime();
+        R r = loader.get();
+        long nanos = System.nanoTime() - begin;
+        metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, nanos);
+        long cost = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (r == null){
+            setNull(key);
+            return null;
+        }
+        setWithLogicalExpire(key, r, time, unit, cost, graceMillis(time, unit));
+        return r;
+    }
+
+    /**
+     * 异步重建缓存：提交给重建线程池、本实例同一个key同时只有一个重建任务
+     * 重建线程先竞争分布式锁、获取到锁的实例才查询数据库
+     * @param physicalMillis redis中真实的过期时间（毫秒）、为null时不过期
+     */
+    private <R> void rebuildAsync(String keyPrefix, String key, Supplier<R> loader, Long time, TimeUnit unit, Long physicalMillis){
+        //按访问频率排序：越热的key越先重建
+        rebuildExecutor.submit(key, hotKeyDetector.estimate(key), () -> {
+            String lockKey = LOCK_KEY_PREFIX + key;
+            boolean isLock = tryLock(lockKey);
+            //判断是否获取到锁
+            if(!isLock) {
+                metrics.increment(keyPrefix, CacheMetrics.Event.LOCK_FAILURE);
+                return;
+            }
+            try {
+                //查询数据库、写入redis
+                long begin = System.nanoTime();
+                R r = loader.get();
+                long nanos = System.nanoTime() - begin;
+                metrics.record(keyPrefix, CacheMetrics.Timing.REBUILD, nanos);
+                if (r == null){
+                    setNull(key);
+                }else {
+                    this.setWithLogicalExpire(key, r, time, unit, TimeUnit.NANOSECONDS.toMillis(nanos), physicalMillis);
+                }
+            }catch (Exception e){
+                metrics.increment(keyPrefix, CacheMetrics.Event.REBUILD_FAILURE);
+                log.error("重建缓存失败：{}", key, e);
+            }finally {
+                //释放锁
+                unlock(lockKey);
+            }
+        });
+    }
+
     /**
      * 互斥锁解决缓存击穿问题
      * 上锁
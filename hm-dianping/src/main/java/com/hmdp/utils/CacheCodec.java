@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器：决定对象以什么格式写入redis
+ * @author zyf
+ * @Data 2024/2/23 - 14:05
+ */
+public interface CacheCodec {
+
+    /**
+     * 是否能解析这段数据：读取时根据数据头选择编解码器
+     * @param bytes
+     * @return
+     */
+    boolean supports(byte[] bytes);
+
+    /**
+     * 序列化普通缓存值
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 反序列化普通缓存值
+     * @param bytes
+     * @param type
+     * @return 数据与当前类结构不兼容时返回null、按未命中处理
+     * @param <R>
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 序列化带逻辑过期时间的缓存值
+     * @param redisData 数据、逻辑过期时间、重建耗时
+     * @return
+     */
+    byte[] encodeWithLogicalExpire(RedisData redisData);
+
+    /**
+     * 反序列化带逻辑过期时间的缓存值
+     * @param bytes
+     * @param type
+     * @return data已经转换为type类型的RedisData、数据不兼容时返回null
+     * @param <R>
+     */
+    <R> RedisData decodeWithLogicalExpire(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 可靠的缓存删除：先更新数据库、事务提交后再删除缓存
+ * 1、事务提交后删除一次、延迟一段时间后再删除一次（延迟双删）：覆盖提交前被读请求写回的旧值
+ * 2、删除失败的key进入redis的zset重试队列（score为下次重试时间）、redis也写不进去时先放在本地队列
+ * 3、定时任务重试到期的key、直到删除成功
+ * @author zyf
+ * @Data 2024/2/26 - 10:15
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //延迟双删的定时线程
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-invalidator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //redis不可用时暂存的待删除key
+    private final Queue<String> localRetryQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 在当前事务提交后删除缓存、没有事务时立即删除
+     * @param key
+     */
+    public void invalidateAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                invalidate(key);
+            }
+        });
+    }
+
+    /**
+     * 立即删除一次、并安排延迟的第二次删除
+     * @param key
+     */
+    public void invalidate(String key) {
+        evictOrRetry(key);
+        scheduler.schedule(() -> evictOrRetry(key), CACHE_DOUBLE_DELETE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictOrRetry(String key) {
+        try {
+            cacheClient.evict(key);
+        } catch (Exception e) {
+            log.warn("删除缓存失败、加入重试队列：{}", key, e);
+            enqueueRetry(key);
+        }
+    }
+
+    private void enqueueRetry(String key) {
+        long retryAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CACHE_INVALIDATE_RETRY_INTERVAL);
+        try {
+            stringRedisTemplate.opsForZSet().add(CACHE_INVALIDATE_RETRY_KEY, key, retryAt);
+        } catch (Exception e) {
+            //redis不可用：先放到本地、等redis恢复后再转入重试队列
+            localRetryQueue.offer(key);
+        }
+    }
+
+    /**
+     * 重试到期的删除任务
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void retry() {
+        //1、本地暂存的key直接重试、失败的会重新入队
+        for (int i = localRetryQueue.size(); i > 0; i--) {
+            String key = localRetryQueue.poll();
+            if (key == null) {
+                break;
+            }
+            evictOrRetry(key);
+        }
+        //2、取出到期的key重试
+        Set<String> keys;
+        try {
+            keys = stringRedisTemplate.opsForZSet().rangeByScore(CACHE_INVALIDATE_RETRY_KEY,
+                    0, System.currentTimeMillis(), 0, CACHE_INVALIDATE_RETRY_BATCH);
+        } catch (Exception e) {
+            log.warn("读取缓存删除重试队列失败", e);
+            return;
+        }
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            try {
+                cacheClient.evict(key);
+                stringRedisTemplate.opsForZSet().remove(CACHE_INVALIDATE_RETRY_KEY, key);
+            } catch (Exception e) {
+                log.warn("重试删除缓存失败：{}", key, e);
+                enqueueRetry(key);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdown();
+    }
+}
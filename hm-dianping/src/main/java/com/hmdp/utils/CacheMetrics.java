@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存指标：按key前缀统计命中、空值命中、重建次数、重建耗时、获取锁失败、反序列化耗时等
+ * 计数器和计时器都用LongAdder实现、记录时没有锁竞争
+ * @author zyf
+ * @Data 2024/2/25 - 10:20
+ */
+public class CacheMetrics {
+
+    /**
+     * 计数事件
+     */
+    public enum Event {
+        //一级缓存命中
+        LOCAL_HIT,
+        //redis命中
+        HIT,
+        //命中缓存的空值
+        NULL_HIT,
+        //redis未命中
+        MISS,
+        //布隆过滤器拦截
+        BLOOM_REJECT,
+        //重建失败
+        REBUILD_FAILURE,
+        //获取重建锁失败
+        LOCK_FAILURE,
+        //反序列化失败
+        DECODE_FAILURE
+    }
+
+    /**
+     * 计时事件
+     */
+    public enum Timing {
+        //查询数据库并写回缓存
+        REBUILD,
+        //反序列化
+        DECODE
+    }
+
+    //key前缀 -> 该前缀的指标
+    private final ConcurrentHashMap<String, PrefixMetrics> metrics = new ConcurrentHashMap<>();
+
+    public void increment(String keyPrefix, Event event) {
+        of(keyPrefix).counters[event.ordinal()].increment();
+    }
+
+    /**
+     * 记录一次耗时
+     * @param keyPrefix
+     * @param timing
+     * @param nanos 纳秒
+     */
+    public void record(String keyPrefix, Timing timing, long nanos) {
+        of(keyPrefix).timers[timing.ordinal()].record(nanos);
+    }
+
+    private PrefixMetrics of(String keyPrefix) {
+        return metrics.computeIfAbsent(keyPrefix, k -> new PrefixMetrics());
+    }
+
+    /**
+     * 所有前缀的指标快照
+     * @return key前缀 -> 指标
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        metrics.forEach((prefix, m) -> result.put(prefix, m.toMap()));
+        return result;
+    }
+
+    private static class PrefixMetrics {
+        final LongAdder[] counters = new LongAdder[Event.values().length];
+        final Timer[] timers = new Timer[Timing.values().length];
+
+        PrefixMetrics() {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new LongAdder();
+            }
+            for (int i = 0; i < timers.length; i++) {
+                timers[i] = new Timer();
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Event event : Event.values()) {
+                map.put(event.name().toLowerCase(), counters[event.ordinal()].sum());
+            }
+            for (Timing timing : Timing.values()) {
+                map.put(timing.name().toLowerCase(), timers[timing.ordinal()].toMap());
+            }
+            //命中率：一级缓存和redis的命中（包括空值）占所有请求的比例、布隆过滤器拦截的请求不计入
+            long localHit = counters[Event.LOCAL_HIT.ordinal()].sum();
+            long hit = counters[Event.HIT.ordinal()].sum();
+            long nullHit = counters[Event.NULL_HIT.ordinal()].sum();
+            long total = localHit + hit + nullHit + counters[Event.MISS.ordinal()].sum();
+            map.put("hitRatio", total == 0 ? 0D : (double) (localHit + hit + nullHit) / total);
+            map.put("nullHitRatio", total == 0 ? 0D : (double) nullHit / total);
+            return map;
+        }
+    }
+
+    private static class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        Map<String, Object> toMap() {
+            long n = count.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", n);
+            map.put("totalMs", totalNanos.sum() / 1_000_000D);
+            map.put("meanMs", n == 0 ? 0D : totalNanos.sum() / 1_000_000D / n);
+            map.put("maxMs", maxNanos.get() / 1_000_000D);
+            return map;
+        }
+    }
+}
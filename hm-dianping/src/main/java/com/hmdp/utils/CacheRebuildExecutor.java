@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存重建线程池
+ * 1、同一个key在排队或执行中时、不会重复提交
+ * 2、按key的访问频率排序：越热的key越先重建
+ * 3、队列有上限：队列满时直接丢弃新的重建任务（调用方继续返回旧数据）
+ * 4、关闭应用时等待已提交的任务执行完
+ * 5、记录每个key的重建耗时
+ * @author zyf
+ * @Data 2024/2/28 - 09:40
+ */
+@Slf4j
+@Component
+//重建任务会访问redis和数据库：关闭时先等待重建任务执行完、再关闭连接
+@DependsOn({"redisConnectionFactory", "dataSource"})
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor executor;
+    //排队或执行中的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    //提交顺序：频率相同时先提交的先执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder dedupedCount = new LongAdder();
+    private final LongAdder shedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    //每个key的重建耗时：只保留最近使用的CACHE_REBUILD_LATENCY_KEYS个key
+    private final Map<String, Latency> latencies = new LinkedHashMap<String, Latency>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Latency> eldest) {
+            return size() > CACHE_REBUILD_LATENCY_KEYS;
+        }
+    };
+
+    public CacheRebuildExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(CACHE_REBUILD_THREADS, CACHE_REBUILD_THREADS,
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet()));
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存的key
+     * @param frequency key的访问频率、越大越先执行
+     * @param task 重建逻辑
+     * @return 被去重或者因为队列已满被丢弃时返回false
+     */
+    public boolean submit(String key, long frequency, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            dedupedCount.increment();
+            return false;
+        }
+        //PriorityBlockingQueue没有容量限制：提交前检查队列长度
+        if (executor.isShutdown() || executor.getQueue().size() >= CACHE_REBUILD_QUEUE_CAPACITY) {
+            pendingKeys.remove(key);
+            shedCount.increment();
+            log.warn("缓存重建队列已满、丢弃重建任务：{}", key);
+            return false;
+        }
+        try {
+            executor.execute(new RebuildTask(key, frequency, sequence.incrementAndGet(), task));
+        } catch (RuntimeException e) {
+            pendingKeys.remove(key);
+            shedCount.increment();
+            log.warn("提交缓存重建任务失败：{}", key, e);
+            return false;
+        }
+        submittedCount.increment();
+        return true;
+    }
+
+    /**
+     * 线程池状态、以及平均耗时最长的key
+     * @return
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueSize", executor.getQueue().size());
+        stats.put("queueCapacity", CACHE_REBUILD_QUEUE_CAPACITY);
+        stats.put("activeCount", executor.getActiveCount());
+        stats.put("poolSize", executor.getPoolSize());
+        stats.put("completedTaskCount", executor.getCompletedTaskCount());
+        stats.put("pendingKeys", pendingKeys.size());
+        stats.put("submitted", submittedCount.sum());
+        stats.put("deduped", dedupedCount.sum());
+        stats.put("shed", shedCount.sum());
+        stats.put("failed", failedCount.sum());
+        List<Map.Entry<String, Latency>> entries;
+        synchronized (latencies) {
+            entries = new ArrayList<>(latencies.entrySet());
+        }
+        entries.sort((a, b) -> Double.compare(b.getValue().meanMs(), a.getValue().meanMs()));
+        List<Map<String, Object>> slowest = new ArrayList<>();
+        for (Map.Entry<String, Latency> entry : entries.subList(0, Math.min(20, entries.size()))) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("key", entry.getKey());
+            map.put("count", entry.getValue().count);
+            map.put("meanMs", entry.getValue().meanMs());
+            map.put("maxMs", entry.getValue().maxNanos / 1_000_000D);
+            map.put("lastMs", entry.getValue().lastNanos / 1_000_000D);
+            slowest.add(map);
+        }
+        stats.put("slowestKeys", slowest);
+        return stats;
+    }
+
+    private void recordLatency(String key, long nanos) {
+        synchronized (latencies) {
+            Latency latency = latencies.computeIfAbsent(key, k -> new Latency());
+            latency.count++;
+            latency.totalNanos += nanos;
+            latency.lastNanos = nanos;
+            latency.maxNanos = Math.max(latency.maxNanos, nanos);
+        }
+    }
+
+    /**
+     * 关闭应用时不再接收新任务、等待队列中的任务执行完
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(CACHE_REBUILD_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+            List<Runnable> dropped = executor.shutdownNow();
+            log.warn("缓存重建线程池关闭超时、丢弃{}个任务", dropped.size());
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        final String key;
+        final long frequency;
+        final long seq;
+        final Runnable task;
+
+        RebuildTask(String key, long frequency, long seq, Runnable task) {
+            this.key = key;
+            this.frequency = frequency;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failedCount.increment();
+                log.error("重建缓存失败：{}", key, e);
+            } finally {
+                recordLatency(key, System.nanoTime() - begin);
+                pendingKeys.remove(key);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask o) {
+            int c = Long.compare(o.frequency, frequency);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static class Latency {
+        long count;
+        long totalNanos;
+        long lastNanos;
+        long maxNanos;
+
+        double meanMs() {
+            return count == 0 ? 0D : totalNanos / 1_000_000D / count;
+        }
+    }
+}
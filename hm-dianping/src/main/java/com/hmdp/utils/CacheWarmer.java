@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热：启动时（或手动触发）流式扫描数据库、分批用管道写入redis
+ * 读数据库和写redis并行进行、同时写入的批数有上限、不会把整张表堆在内存里
+ * @author zyf
+ * @Data 2024/2/24 - 16:30
+ */
+@Slf4j
+@Component
+public class CacheWarmer {
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    //同一时间只允许一个预热任务
+    private final AtomicBoolean running = new AtomicBoolean();
+    //每个预热任务的进度
+    private final Map<String, Progress> progresses = new LinkedHashMap<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        start();
+    }
+
+    /**
+     * 在后台线程开始预热
+     * @return 已经有预热任务在执行时返回false
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                warmUpShops();
+                warmUpSeckillStock();
+            } catch (Exception e) {
+                log.error("缓存预热失败", e);
+            } finally {
+                running.set(false);
+            }
+        }, "cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * 预热进度：条数、耗时、吞吐量
+     * @return
+     */
+    public Map<String, Object> getProgress() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("running", running.get());
+        synchronized (progresses) {
+            for (Progress progress : progresses.values()) {
+                result.put(progress.name, progress.toMap());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 店铺：按提前刷新模式写入、与ShopServiceImpl.queryById的读取方式一致
+     */
+    private void warmUpShops() {
+        stream("shop", shopMapper::scanAll, shops -> {
+            Map<String, Shop> values = new HashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setBatchWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.MINUTES, true);
+        });
+    }
+
+    /**
+     * 秒杀库存：只在redis中没有的时候写入（SETNX）、不会覆盖正在秒杀中的库存
+     */
+    private void warmUpSeckillStock() {
+        stream("seckillStock", seckillVoucherMapper::scanUnfinished, vouchers ->
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (SeckillVoucher voucher : vouchers) {
+                        connection.setNX((SECKILL_STOCK_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8),
+                                String.valueOf(voucher.getStock()).getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                }));
+    }
+
+    /**
+     * 流式读取数据库、分批交给写入线程
+     * @param name 任务名称
+     * @param cursorSupplier 打开游标的函数
+     * @param writer 写入一批数据的函数
+     */
+    private <T> void stream(String name, Supplier<Cursor<T>> cursorSupplier, Consumer<List<T>> writer) {
+        Progress progress = new Progress(name);
+        synchronized (progresses) {
+            progresses.put(name, progress);
+        }
+        ExecutorService writers = Executors.newFixedThreadPool(CACHE_WARMUP_CONCURRENCY);
+        //写入中的批数达到上限时、读取线程等待
+        Semaphore permits = new Semaphore(CACHE_WARMUP_CONCURRENCY);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        try {
+            //游标需要在同一个事务（连接）中遍历
+            transactionTemplate.execute(status -> {
+                try (Cursor<T> cursor = cursorSupplier.get()) {
+                    List<T> chunk = new ArrayList<>(CACHE_WARMUP_BATCH_SIZE);
+                    for (T row : cursor) {
+                        chunk.add(row);
+                        if (chunk.size() >= CACHE_WARMUP_BATCH_SIZE) {
+                            submit(writers, permits, chunk, writer, progress);
+                            chunk = new ArrayList<>(CACHE_WARMUP_BATCH_SIZE);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        submit(writers, permits, chunk, writer, progress);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } finally {
+            //等待已经提交的批次写完：读取数据库中途失败时也要等待、否则写入还在进行就被标记为完成
+            permits.acquireUninterruptibly(CACHE_WARMUP_CONCURRENCY);
+            writers.shutdown();
+            progress.finished = true;
+        }
+        log.info("缓存预热完成[{}]：{}", name, progress.toMap());
+    }
+
+    private <T> void submit(ExecutorService writers, Semaphore permits, List<T> chunk,
+                            Consumer<List<T>> writer, Progress progress) {
+        permits.acquireUninterruptibly();
+        writers.submit(() -> {
+            try {
+                //写入是幂等的（SET、SETNX）：失败后整批重试、重试次数用完才记为失败
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        writer.accept(chunk);
+                        progress.written.addAndGet(chunk.size());
+                        log.debug("缓存预热[{}]：{}", progress.name, progress.toMap());
+                        return;
+                    } catch (Exception e) {
+                        if (attempt >= CACHE_WARMUP_RETRIES) {
+                            progress.failed.addAndGet(chunk.size());
+                            log.error("缓存预热写入失败[{}]：已重试{}次", progress.name, attempt, e);
+                            return;
+                        }
+                        progress.retried.incrementAndGet();
+                        log.warn("缓存预热写入失败[{}]、准备重试：{}", progress.name, e.getMessage());
+                        Thread.sleep(CACHE_WARMUP_RETRY_MILLIS * (attempt + 1));
+                    }
+                }
+            } catch (InterruptedException e) {
+                progress.failed.addAndGet(chunk.size());
+                Thread.currentThread().interrupt();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private static class Progress {
+        final String name;
+        final long begin = System.currentTimeMillis();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong retried = new AtomicLong();
+        volatile boolean finished;
+
+        Progress(String name) {
+            this.name = name;
+        }
+
+        Map<String, Object> toMap() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("written", written.get());
+            map.put("failed", failed.get());
+            map.put("retried", retried.get());
+            map.put("elapsedMs", elapsed);
+            map.put("perSecond", written.get() * 1000 / elapsed);
+            map.put("finished", finished);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：对访问采样、用滑动窗口上的Count-Min Sketch估算每个key在窗口内的访问次数
+ * 窗口由若干个时间桶组成、每个桶是一个sketch、过期的桶在下一次写入时清空
+ * 估算次数超过阈值的key标记为热点、热点状态在窗口时间内没有再次达到阈值时自动解除
+ * @author zyf
+ * @Data 2024/2/25 - 15:40
+ */
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    //每sampleRate次访问采样一次
+    private final int sampleRate;
+    //窗口内（估算的真实访问次数）达到该值即为热点
+    private final long threshold;
+    private final int maxHotKeys;
+    private final long bucketMillis;
+    private final long windowMillis;
+
+    //时间桶：每个桶DEPTH行、每行WIDTH个计数器
+    private final AtomicIntegerArray[] buckets;
+    //每个桶当前对应的时间片编号
+    private final AtomicLongArray bucketEpochs;
+
+    //热点key -> 热点信息
+    private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(int sampleRate, long threshold, int maxHotKeys, int bucketCount, long bucketMillis) {
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.maxHotKeys = maxHotKeys;
+        this.bucketMillis = bucketMillis;
+        this.windowMillis = bucketMillis * bucketCount;
+        this.buckets = new AtomicIntegerArray[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        this.bucketEpochs = new AtomicLongArray(bucketCount);
+    }
+
+    /**
+     * 记录一次访问（按采样率）、并返回这个key当前是否是热点
+     * @param key
+     * @return
+     */
+    public boolean recordAndCheck(String key) {
+        long now = System.currentTimeMillis();
+        if (ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            record(key, now);
+        }
+        return isHot(key, now);
+    }
+
+    private void record(String key, long now) {
+        //1、定位当前时间桶、桶已经过期则清空后复用
+        long epoch = now / bucketMillis;
+        int index = (int) (epoch % buckets.length);
+        long old = bucketEpochs.get(index);
+        if (old != epoch && bucketEpochs.compareAndSet(index, old, epoch)) {
+            AtomicIntegerArray bucket = buckets[index];
+            for (int i = 0; i < bucket.length(); i++) {
+                bucket.set(i, 0);
+            }
+        }
+        //2、每一行加一
+        AtomicIntegerArray bucket = buckets[index];
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9E3779B9);
+        for (int row = 0; row < DEPTH; row++) {
+            bucket.incrementAndGet(row * WIDTH + slot(h1, h2, row));
+        }
+        //3、估算窗口内的访问次数、达到阈值则标记为热点
+        long estimate = estimate(h1, h2, epoch) * sampleRate;
+        if (estimate >= threshold) {
+            HotKey hotKey = hotKeys.get(key);
+            if (hotKey != null) {
+                hotKey.estimate = estimate;
+                hotKey.expireAt = now + windowMillis;
+            } else if (hotKeys.size() < maxHotKeys || sweepExpired(now)) {
+                hotKeys.put(key, new HotKey(key, estimate, now, now + windowMillis));
+            }
+        }
+    }
+
+    /**
+     * 热点数量达到上限时清理已经过期的热点：过期的热点只在再次查询同一个key时删除、不清理的话上限被占满后不会再有新的热点
+     * @return 清理后是否还有空位
+     */
+    private boolean sweepExpired(long now) {
+        hotKeys.values().removeIf(hotKey -> hotKey.expireAt < now);
+        return hotKeys.size() < maxHotKeys;
+    }
+
+    /**
+     * 每一行取窗口内所有桶的和、再取各行的最小值
+     */
+    private long estimate(int h1, int h2, long epoch) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            long sum = 0;
+            int cell = row * WIDTH + slot(h1, h2, row);
+            for (int i = 0; i < buckets.length; i++) {
+                //只统计窗口内的桶
+                if (epoch - bucketEpochs.get(i) < buckets.length) {
+                    sum += buckets[i].get(cell);
+                }
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * 估算key在窗口内的访问次数（已经按采样率放大）
+     * @param key
+     * @return
+     */
+    public long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9E3779B9);
+        return estimate(h1, h2, System.currentTimeMillis() / bucketMillis) * sampleRate;
+    }
+
+    private boolean isHot(String key, long now) {
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            return false;
+        }
+        if (hotKey.expireAt < now) {
+            hotKeys.remove(key, hotKey);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 当前的热点key、按估算访问次数从高到低
+     * @return
+     */
+    public List<Map<String, Object>> getHotKeys() {
+        long now = System.currentTimeMillis();
+        List<HotKey> list = new ArrayList<>();
+        for (HotKey hotKey : hotKeys.values()) {
+            if (hotKey.expireAt >= now) {
+                list.add(hotKey);
+            }
+        }
+        list.sort((a, b) -> Long.compare(b.estimate, a.estimate));
+        List<Map<String, Object>> result = new ArrayList<>(list.size());
+        for (HotKey hotKey : list) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("key", hotKey.key);
+            map.put("estimate", hotKey.estimate);
+            map.put("windowMs", windowMillis);
+            map.put("promotedAt", hotKey.promotedAt);
+            result.add(map);
+        }
+        return result;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int slot(int h1, int h2, int row) {
+        return ((h1 + row * h2) & 0x7FFFFFFF) % WIDTH;
+    }
+
+    private static class HotKey {
+        final String key;
+        final long promotedAt;
+        volatile long estimate;
+        volatile long expireAt;
+
+        HotKey(String key, long estimate, long promotedAt, long expireAt) {
+            this.key = key;
+            this.estimate = estimate;
+            this.promotedAt = promotedAt;
+            this.expireAt = expireAt;
+        }
+    }
+}
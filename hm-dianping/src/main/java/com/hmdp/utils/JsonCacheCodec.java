@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码器（默认）：与之前直接用JSONUtil写入的字符串格式完全一致
+ * @author zyf
+ * @Data 2024/2/23 - 14:12
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final JsonCacheCodec INSTANCE = new JsonCacheCodec();
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] == '{' || bytes[0] == '[' || bytes[0] == '"');
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeWithLogicalExpire(RedisData redisData) {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> RedisData decodeWithLogicalExpire(byte[] bytes, Class<R> type) {
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        //没有逻辑过期时间或数据：之前直接写入的对象JSON（不带RedisData包装）、按不兼容处理、由调用方重新加载
+        if (redisData.getExpireTime() == null || !(redisData.getData() instanceof JSONObject)) {
+            return null;
+        }
+        //data反序列化出来是JSONObject、转换为目标类型
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+}
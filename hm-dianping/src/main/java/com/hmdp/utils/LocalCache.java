@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内一级缓存（L1）
+ * 分段的LRU + 过期时间、容量有上限，用于挡住热点数据对redis的访问
+ * 缓存的是对象本身、不做复制：同一个key的所有调用方拿到的是同一个实例、调用方不能修改返回的对象
+ * @author zyf
+ * @Data 2024/2/20 - 10:12
+ */
+public class LocalCache {
+
+    /**
+     * 缓存空值的标记对象：区分“没有缓存”和“缓存了空值”
+     */
+    public static final Object NULL_VALUE = new Object();
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment[] segments;
+    private final long ttlMillis;
+
+    //命中、未命中、淘汰次数
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maxSize 最大条目数
+     * @param ttlMillis 每个条目的存活时间
+     */
+    public LocalCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.segments = new Segment[SEGMENT_COUNT];
+        int segmentSize = Math.max(1, maxSize / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * 查询缓存
+     * @param key
+     * @return 没有缓存返回null、缓存了空值返回NULL_VALUE
+     */
+    public Object get(String key) {
+        Segment segment = segmentFor(key);
+        CacheEntry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            //过期了直接删除
+            if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.value;
+    }
+
+    public void put(String key, Object value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * 写入缓存、value为null时写入空值标记
+     * @param key
+     * @param value
+     * @param ttlMillis 单独指定的存活时间
+     */
+    public void put(String key, Object value, long ttlMillis) {
+        CacheEntry entry = new CacheEntry(value == null ? NULL_VALUE : value, System.currentTimeMillis() + ttlMillis);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    public void invalidate(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * 删除某个前缀下的所有条目
+     * @param keyPrefix
+     */
+    public void invalidatePrefix(String keyPrefix) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.keySet().removeIf(k -> k.startsWith(keyPrefix));
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class CacheEntry {
+        final Object value;
+        final long expireAt;
+
+        CacheEntry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 按访问顺序排序的LinkedHashMap、超出容量淘汰最久未访问的条目
+     */
+    private class Segment extends LinkedHashMap<String, CacheEntry> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            if (size() > maxSize) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
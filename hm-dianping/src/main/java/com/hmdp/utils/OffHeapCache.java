@@ -0,0 +1,334 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆外缓存：以long类型的id为key、保存序列化后的字节、数据不在堆上、不增加GC的负担
+ * 1、分段：每段一块直接内存（第一次写入时分配）、一把锁、一个long -> int的开放寻址索引
+ * 2、每段的内存是一个环形日志：新数据追加到head、空间不够时从tail开始回收
+ * 3、CLOCK淘汰：读取时设置访问标记、回收时有访问标记的条目清除标记后重新追加到head（第二次机会）、没有标记的直接淘汰
+ * 条目格式：长度(int) + 标记(byte) + id(long) + 过期时间(long) + 数据
+ * @author zyf
+ * @Data 2024/2/29 - 14:10
+ */
+public class OffHeapCache {
+
+    private static final int HEADER = 21;
+    private static final byte FLAG_LIVE = 0;
+    private static final byte FLAG_REFERENCED = 1;
+    private static final byte FLAG_DELETED = 2;
+    //环形日志的尾部空间不够时写入的跳转标记：回收到这里直接跳到开头
+    private static final int WRAP_MARKER = -1;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int segmentBytes;
+    private final long ttlMillis;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder reinsertionCount = new LongAdder();
+
+    /**
+     * @param capacityBytes 总容量（字节）
+     * @param segmentCount 段数、必须是2的幂
+     * @param ttlMillis 条目的过期时间
+     */
+    public OffHeapCache(long capacityBytes, int segmentCount, long ttlMillis) {
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("segmentCount必须是2的幂：" + segmentCount);
+        }
+        long perSegment = capacityBytes / segmentCount;
+        if (perSegment < HEADER * 16 || perSegment > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("每段的容量不合法：" + perSegment);
+        }
+        this.segmentBytes = (int) perSegment;
+        this.segmentMask = segmentCount - 1;
+        this.ttlMillis = ttlMillis;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * 读取
+     * @param id
+     * @return 不存在或已过期返回null
+     */
+    public byte[] get(long id) {
+        byte[] value = segmentFor(id).get(id, System.currentTimeMillis());
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 写入：超过单段容量1/4的数据不缓存
+     * @param id
+     * @param value
+     */
+    public void put(long id, byte[] value) {
+        segmentFor(id).put(id, value, System.currentTimeMillis() + ttlMillis);
+    }
+
+    public void invalidate(long id) {
+        segmentFor(id).invalidate(id);
+    }
+
+    public Map<String, Object> getStats() {
+        long used = 0;
+        long entries = 0;
+        long allocated = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.usedBytes;
+                entries += segment.index.size;
+                allocated += segment.buffer == null ? 0 : segmentBytes;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacityBytes", (long) segmentBytes * segments.length);
+        stats.put("allocatedBytes", allocated);
+        stats.put("usedBytes", used);
+        stats.put("entries", entries);
+        stats.put("hitCount", hitCount.sum());
+        stats.put("missCount", missCount.sum());
+        stats.put("evictionCount", evictionCount.sum());
+        stats.put("reinsertionCount", reinsertionCount.sum());
+        return stats;
+    }
+
+    private Segment segmentFor(long id) {
+        int h = (int) (id ^ (id >>> 32));
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return segments[h & segmentMask];
+    }
+
+    private final class Segment {
+        //第一次写入时分配
+        ByteBuffer buffer;
+        //写入位置、最早的条目位置、已占用的字节（包括尾部跳过的空间）
+        int head;
+        int tail;
+        long usedBytes;
+        final LongIntIndex index = new LongIntIndex();
+
+        synchronized byte[] get(long id, long now) {
+            int offset = index.get(id);
+            if (offset < 0) {
+                return null;
+            }
+            if (buffer.getLong(offset + 13) < now) {
+                buffer.put(offset + 4, FLAG_DELETED);
+                index.remove(id);
+                return null;
+            }
+            byte[] value = new byte[buffer.getInt(offset)];
+            buffer.position(offset + HEADER);
+            buffer.get(value);
+            buffer.put(offset + 4, FLAG_REFERENCED);
+            return value;
+        }
+
+        synchronized void put(long id, byte[] value, long expireAt) {
+            int size = HEADER + value.length;
+            invalidate(id);
+            if (size > segmentBytes / 4) {
+                return;
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(segmentBytes);
+            }
+            makeRoom(size);
+            write(head, id, expireAt, value);
+            index.put(id, head);
+            head += size;
+            usedBytes += size;
+        }
+
+        synchronized void invalidate(long id) {
+            int offset = index.get(id);
+            if (offset >= 0) {
+                buffer.put(offset + 4, FLAG_DELETED);
+                index.remove(id);
+            }
+        }
+
+        private void write(int offset, long id, long expireAt, byte[] value) {
+            buffer.putInt(offset, value.length);
+            buffer.put(offset + 4, FLAG_LIVE);
+            buffer.putLong(offset + 5, id);
+            buffer.putLong(offset + 13, expireAt);
+            buffer.position(offset + HEADER);
+            buffer.put(value);
+        }
+
+        /**
+         * 保证head之后有size字节的连续空间
+         */
+        private void makeRoom(int size) {
+            while (true) {
+                if (usedBytes == 0) {
+                    head = 0;
+                    tail = 0;
+                    return;
+                }
+                if (head > tail) {
+                    //占用[tail, head)：head之后到末尾的空间不够时跳到开头
+                    if (segmentBytes - head >= size) {
+                        return;
+                    }
+                    if (segmentBytes - head >= HEADER) {
+                        buffer.putInt(head, WRAP_MARKER);
+                    }
+                    usedBytes += segmentBytes - head;
+                    head = 0;
+                    continue;
+                }
+                //占用[tail, 末尾)和[0, head)：空闲空间是[head, tail)
+                if (tail - head >= size) {
+                    return;
+                }
+                reclaim();
+            }
+        }
+
+        /**
+         * 回收tail处的条目：有访问标记的重新追加到head、否则淘汰
+         */
+        private void reclaim() {
+            if (segmentBytes - tail < HEADER || buffer.getInt(tail) == WRAP_MARKER) {
+                usedBytes -= segmentBytes - tail;
+                tail = 0;
+                return;
+            }
+            int from = tail;
+            int size = HEADER + buffer.getInt(from);
+            byte flag = buffer.get(from + 4);
+            long id = buffer.getLong(from + 5);
+            long expireAt = buffer.getLong(from + 13);
+            tail += size;
+            usedBytes -= size;
+            if (flag == FLAG_DELETED) {
+                return;
+            }
+            if (flag == FLAG_REFERENCED && expireAt >= System.currentTimeMillis()) {
+                //第二次机会：空闲空间[head, tail)刚刚增加了size、一定放得下
+                byte[] value = new byte[size - HEADER];
+                buffer.position(from + HEADER);
+                buffer.get(value);
+                write(head, id, expireAt, value);
+                index.put(id, head);
+                head += size;
+                usedBytes += size;
+                reinsertionCount.increment();
+                return;
+            }
+            index.remove(id);
+            evictionCount.increment();
+        }
+    }
+
+    /**
+     * long -> int的开放寻址哈希表（线性探测、删除时向前移动后续条目、不留墓碑）
+     */
+    private static final class LongIntIndex {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        long[] keys;
+        int[] values;
+        int size;
+        int mask;
+
+        LongIntIndex() {
+            init(64);
+        }
+
+        private void init(int capacity) {
+            keys = new long[capacity];
+            java.util.Arrays.fill(keys, EMPTY);
+            values = new int[capacity];
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        int get(long key) {
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                if (keys[i] == EMPTY) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        void remove(long key) {
+            int i = slot(key);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = EMPTY;
+            size--;
+            //后续条目如果不在自己的位置上、向前移动填补空位
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int k = slot(keys[j]);
+                boolean inRange = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+                if (inRange) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                keys[j] = EMPTY;
+                i = j;
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            init(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
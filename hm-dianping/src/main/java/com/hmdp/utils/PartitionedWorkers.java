@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * 分区的批处理线程：按key的哈希把任务分到N个分区、每个分区一个有界队列和一个线程
+ * 1、同一个key的任务总在同一个分区、按提交顺序串行处理：不同线程之间不需要加锁
+ * 2、队列满时submit阻塞：上游按处理能力读取、不会堆积在内存中
+ * 3、每个分区攒批处理：最多batchSize个、或者第一个任务入队后等待batchMillis毫秒
+ * 4、记录每个分区的积压：队列长度、最早任务的等待时间、最近一批的排队时间和处理耗时
+ * @author zyf
+ * @Data 2024/3/3 - 15:30
+ */
+@Slf4j
+public class PartitionedWorkers<T> {
+
+    private final String name;
+    private final List<Partition> partitions;
+    private final ToLongFunction<T> partitionKey;
+    private final Consumer<List<T>> handler;
+    private final int batchSize;
+    private final long batchNanos;
+    private volatile boolean running = true;
+
+    /**
+     * @param name 线程名前缀
+     * @param parallelism 分区数（线程数）
+     * @param queueCapacity 每个分区队列的容量
+     * @param batchSize 每批最多的任务数
+     * @param batchMillis 攒批最多等待的时间
+     * @param partitionKey 分区的key
+     * @param handler 处理一批任务：异常由调用方处理、这里只记录日志
+     */
+    public PartitionedWorkers(String name, int parallelism, int queueCapacity, int batchSize, long batchMillis,
+                              ToLongFunction<T> partitionKey, Consumer<List<T>> handler) {
+        this.name = name;
+        this.partitionKey = partitionKey;
+        this.handler = handler;
+        this.batchSize = batchSize;
+        this.batchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+        this.partitions = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            Partition partition = new Partition(i, queueCapacity);
+            partitions.add(partition);
+            partition.thread.start();
+        }
+    }
+
+    /**
+     * 提交任务：所在分区的队列满时阻塞
+     * @param task
+     * @throws InterruptedException
+     */
+    public void submit(T task) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException(name + "已关闭");
+        }
+        Partition partition = partitions.get(partitionOf(partitionKey.applyAsLong(task)));
+        partition.queue.put(new Task<>(task, System.nanoTime()));
+    }
+
+    /**
+     * key所在的分区：先打散、连续的id也能均匀分布
+     */
+    private int partitionOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) partitions.size());
+    }
+
+    /**
+     * 各分区的积压和处理情况
+     * @return
+     */
+    public List<Map<String, Object>> getStats() {
+        long now = System.nanoTime();
+        List<Map<String, Object>> stats = new ArrayList<>(partitions.size());
+        for (Partition partition : partitions) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            Task<T> oldest = partition.queue.peek();
+            map.put("partition", partition.index);
+            map.put("queueSize", partition.queue.size());
+            map.put("queueCapacity", partition.capacity);
+            map.put("oldestWaitMs", oldest == null ? 0D : (now - oldest.enqueuedAt) / 1_000_000D);
+            map.put("processed", partition.processed.sum());
+            map.put("failed", partition.failed.sum());
+            map.put("batches", partition.batches.sum());
+            map.put("lastBatchLagMs", partition.lastLagNanos / 1_000_000D);
+            map.put("lastBatchMs", partition.lastBatchNanos / 1_000_000D);
+            stats.add(map);
+        }
+        return stats;
+    }
+
+    /**
+     * 不再接收新任务、等待各分区处理完队列中的任务
+     * @param timeoutMillis 最多等待的时间
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Partition partition : partitions) {
+            partition.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        for (Partition partition : partitions) {
+            if (partition.thread.isAlive()) {
+                log.warn("{}关闭超时、分区{}还有{}个任务", name, partition.index, partition.queue.size());
+                partition.thread.interrupt();
+            }
+        }
+    }
+
+    private class Partition implements Runnable {
+        final int index;
+        final int capacity;
+        final BlockingQueue<Task<T>> queue;
+        final Thread thread;
+        final LongAdder processed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        volatile long lastLagNanos;
+        volatile long lastBatchNanos;
+
+        Partition(int index, int capacity) {
+            this.index = index;
+            this.capacity = capacity;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, name + "-" + index);
+        }
+
+        @Override
+        public void run() {
+            //关闭后处理完队列中剩余的任务再退出
+            while (running || !queue.isEmpty()) {
+                try {
+                    Task<T> first = queue.poll(200, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    List<Task<T>> batch = new ArrayList<>(batchSize);
+                    batch.add(first);
+                    //攒批：先取走已经在队列中的、不够时等到第一个任务入队batchMillis之后
+                    queue.drainTo(batch, batchSize - 1);
+                    while (batch.size() < batchSize && running) {
+                        long remaining = first.enqueuedAt + batchNanos - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        Task<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, batchSize - batch.size());
+                    }
+                    handle(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void handle(List<Task<T>> batch) {
+            List<T> tasks = new ArrayList<>(batch.size());
+            for (Task<T> task : batch) {
+                tasks.add(task.value);
+            }
+            long begin = System.nanoTime();
+            lastLagNanos = begin - batch.get(0).enqueuedAt;
+            try {
+                handler.accept(tasks);
+                processed.add(tasks.size());
+            } catch (Exception e) {
+                failed.add(tasks.size());
+                log.error("{}分区{}处理失败", name, index, e);
+            } finally {
+                batches.increment();
+                lastBatchNanos = System.nanoTime() - begin;
+            }
+        }
+    }
+
+    private static class Task<T> {
+        final T value;
+        final long enqueuedAt;
+
+        Task(T value, long enqueuedAt) {
+            this.value = value;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 接口限流：由RateLimitInterceptor在进入controller之前判断、被拒绝时返回429和Retry-After
+ * 1、本地令牌桶：每个资源（路径变量key的值）一个桶、超出本实例处理能力的请求不访问redis
+ * 2、redis滑动窗口：每个用户对每个资源在窗口内最多userMaxRequests次请求、多个实例共享
+ * @author zyf
+ * @Data 2024/3/3 - 20:00
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    /**
+     * 限流的名称：滑动窗口的key为limit:{name}:{资源id}:{userId}
+     */
+    String name();
+
+    /**
+     * 资源id所在的路径变量
+     */
+    String key() default "id";
+
+    /**
+     * 本地令牌桶每秒发放的令牌数
+     */
+    double permitsPerSecond() default SECKILL_LIMIT_PERMITS_PER_SECOND;
+
+    /**
+     * 本地令牌桶的容量：允许的突发请求数
+     */
+    int burst() default SECKILL_LIMIT_BURST;
+
+    /**
+     * 用户滑动窗口的大小（毫秒）
+     */
+    long userWindowMillis() default SECKILL_LIMIT_USER_WINDOW;
+
+    /**
+     * 用户在窗口内最多的请求数：小于等于0时不限制
+     */
+    int userMaxRequests() default SECKILL_LIMIT_USER_MAX;
+}
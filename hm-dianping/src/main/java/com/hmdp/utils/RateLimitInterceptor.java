@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 限流拦截器：处理带有@RateLimit的接口、在登录拦截器之后执行（需要用户信息）
+ * 1、本地令牌桶：没有令牌时直接拒绝、不访问redis
+ * 2、redis滑动窗口（rate_limit.lua）：同一个用户对同一个资源的请求频率
+ * 3、被拒绝时返回429、Retry-After为需要等待的秒数
+ * redis不可用时只按本地令牌桶限流：后面的秒杀脚本仍然保证不超卖、一人一单
+ * @author zyf
+ * @Data 2024/3/3 - 20:10
+ */
+@Slf4j
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final RedisScriptRegistry scriptRegistry;
+    //name:资源id -> 令牌桶：数量有上限、任意的路径变量不会让内存无限增长
+    private final LocalCache buckets = new LocalCache(RATE_LIMIT_MAX_BUCKETS, TimeUnit.MINUTES.toMillis(RATE_LIMIT_BUCKET_TTL));
+
+    public RateLimitInterceptor(RedisScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        RateLimit rateLimit = ((HandlerMethod) handler).getMethodAnnotation(RateLimit.class);
+        if (rateLimit == null) {
+            return true;
+        }
+        //1、资源id：路径变量、不是数字时放行、由参数转换返回400
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        Long resource = parseId(variables == null ? null : variables.get(rateLimit.key()));
+        if (resource == null) {
+            return true;
+        }
+        //2、本地令牌桶
+        TokenBucket bucket = bucketFor(rateLimit.name() + ":" + resource, rateLimit);
+        long waitNanos = bucket.tryAcquire();
+        if (waitNanos > 0) {
+            return reject(response, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+        //3、用户的滑动窗口
+        UserDTO user = UserHolder.getUser();
+        if (user == null || rateLimit.userMaxRequests() <= 0) {
+            return true;
+        }
+        String key = RATE_LIMIT_KEY + rateLimit.name() + ":" + resource + ":" + user.getId();
+        Long waitMillis;
+        try {
+            waitMillis = scriptRegistry.execute("rate_limit", Long.class, Collections.singletonList(key),
+                    System.currentTimeMillis(), rateLimit.userWindowMillis(), rateLimit.userMaxRequests(),
+                    IdUtil.fastSimpleUUID());
+        } catch (Exception e) {
+            log.warn("滑动窗口限流失败、放行：{}", key, e);
+            return true;
+        }
+        if (waitMillis != null && waitMillis > 0) {
+            return reject(response, waitMillis);
+        }
+        return true;
+    }
+
+    private static Long parseId(String value) {
+        if (value == null || value.isEmpty() || value.length() > 19) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private TokenBucket bucketFor(String key, RateLimit rateLimit) {
+        Object bucket = buckets.get(key);
+        if (bucket == null) {
+            //加锁创建：同一个资源只有一个桶
+            synchronized (buckets) {
+                bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new TokenBucket(rateLimit.permitsPerSecond(), rateLimit.burst());
+                    buckets.put(key, bucket);
+                }
+            }
+        }
+        return (TokenBucket) bucket;
+    }
+
+    /**
+     * 返回429：Retry-After向上取整到秒
+     */
+    private static boolean reject(HttpServletResponse response, long waitMillis) throws Exception {
+        response.setStatus(TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, (waitMillis + 999) / 1000)));
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("请求太频繁、请稍后再试")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+
+    /**
+     * 令牌桶：按时间补充令牌、最多capacity个
+     */
+    static class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double permitsPerSecond, int capacity) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return 0：拿到令牌、大于0：下一个令牌需要等待的纳秒数
+         */
+        synchronized long tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * permitsPerNano);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / permitsPerNano);
+        }
+    }
+}
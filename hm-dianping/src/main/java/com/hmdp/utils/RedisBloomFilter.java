@@ -0,0 +1,377 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_REBUILD_LOCK_TTL;
+
+/**
+ * 基于redis bitmap的布隆过滤器：用于判断id是否存在、解决缓存穿透
+ * redis中保存完整的位图、本地保存一份副本
+ * 本地副本判断存在则直接放行、判断不存在时再去redis确认（其他实例新增的id可能还没同步到本地）
+ * 重建时持有分布式锁（同一时间只有一个实例重建）、重建期间所有实例新增的id记录在redis的集合{name}:pending中、替换位图后补写
+ * @author zyf
+ * @Data 2024/2/21 - 15:02
+ */
+@Slf4j
+@Component
+public class RedisBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //重建锁的释放：unlock.lua
+    private final RedisScriptRegistry scriptRegistry;
+
+    //过滤器名称（即redis的key）-> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * 注册一个id空间的布隆过滤器
+     * @param name 过滤器名称、同时作为redis的key
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望的误判率
+     * @param idScanner 重建时扫描全部id的函数：把每个id交给传入的Consumer
+     */
+    public void register(String name, long expectedInsertions, double fpp, Consumer<Consumer<Object>> idScanner) {
+        filters.put(name, new Filter(name, expectedInsertions, fpp, idScanner));
+    }
+
+    public boolean isRegistered(String name) {
+        return filters.containsKey(name);
+    }
+
+    /**
+     * 应用启动后：redis中已有位图则加载到本地、没有则重建
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        for (Filter filter : filters.values()) {
+            try {
+                if (!reloadLocal(filter)) {
+                    rebuild(filter.name);
+                }
+            } catch (Exception e) {
+                log.error("初始化布隆过滤器失败：{}", filter.name, e);
+            }
+        }
+    }
+
+    /**
+     * 新增id
+     * @param name
+     * @param id
+     */
+    public void add(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (filter == null) {
+            return;
+        }
+        long[] offsets = filter.offsets(id);
+        filter.setLocal(offsets);
+        filter.insertions.incrementAndGet();
+        //有实例正在重建的话、先记录到共享的集合、重建完成后补写到新位图
+        //先记录再写位图：写到旧位图上的id一定在集合中、集合被读取之后写入的位已经在新位图上
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(filter.lockKey))) {
+            stringRedisTemplate.opsForSet().add(filter.pendingKey, String.valueOf(id));
+            stringRedisTemplate.expire(filter.pendingKey, BLOOM_REBUILD_LOCK_TTL, TimeUnit.SECONDS);
+        }
+        setBits(filter.name, offsets);
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param name
+     * @param id
+     * @return false：一定不存在、true：可能存在
+     */
+    public boolean mightContain(String name, Object id) {
+        Filter filter = filters.get(name);
+        //没有注册或者还没有构建完成：全部放行
+        if (filter == null || !filter.ready) {
+            return true;
+        }
+        long[] offsets = filter.offsets(id);
+        //1、本地副本判断存在：直接放行
+        if (filter.containsLocal(offsets)) {
+            filter.passCount.increment();
+            return true;
+        }
+        //2、本地副本判断不存在：去redis确认
+        try {
+            List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] rawKey = filter.rawKey;
+                for (long offset : offsets) {
+                    connection.getBit(rawKey, offset);
+                }
+                return null;
+            });
+            for (Object bit : bits) {
+                if (!Boolean.TRUE.equals(bit)) {
+                    filter.rejectCount.increment();
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            //redis异常：放行、交给后续的缓存和数据库处理
+            log.error("查询布隆过滤器失败：{}", name, e);
+            return true;
+        }
+        //redis中存在、同步到本地副本
+        filter.setLocal(offsets);
+        filter.passCount.increment();
+        return true;
+    }
+
+    /**
+     * 记录一次误判：布隆过滤器放行、数据库却查不到
+     * @param name
+     */
+    public void recordFalsePositive(String name) {
+        Filter filter = filters.get(name);
+        if (filter != null) {
+            filter.falsePositiveCount.increment();
+        }
+    }
+
+    /**
+     * 重建布隆过滤器：在本地构建完整位图、写入临时key后rename替换
+     * 1、获取重建锁：其他实例正在重建时跳过、本地副本由定时任务从redis刷新
+     * 2、扫描全部id构建位图、写入临时key后rename替换
+     * 3、补写重建期间所有实例新增的id（{name}:pending）
+     * @param name
+     */
+    public void rebuild(String name) {
+        Filter filter = filters.get(name);
+        if (filter == null) {
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(filter.name, stringRedisTemplate, scriptRegistry);
+        if (!lock.tryLock(BLOOM_REBUILD_LOCK_TTL)) {
+            log.info("布隆过滤器{}正在由其他实例重建、跳过", name);
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            //1、扫描全部id、构建位图
+            byte[] bitmap = new byte[filter.byteSize()];
+            AtomicLong count = new AtomicLong();
+            filter.idScanner.accept(id -> {
+                for (long offset : filter.offsets(id)) {
+                    bitmap[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                }
+                count.incrementAndGet();
+            });
+            //2、写入临时key、再原子替换：临时key每次不同、锁过期后另一个实例开始重建也不会互相覆盖
+            byte[] tmpKey = (filter.name + ":tmp:" + IdUtil.fastSimpleUUID()).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                try {
+                    connection.set(tmpKey, bitmap);
+                    connection.rename(tmpKey, filter.rawKey);
+                } catch (RuntimeException e) {
+                    //替换失败：删除临时key、不留下无用的位图
+                    connection.del(tmpKey);
+                    throw e;
+                }
+                return null;
+            });
+            //3、补写重建期间新增的id：写在旧位图上的位已经随rename丢失
+            filter.local = bitmap;
+            Set<String> pending = stringRedisTemplate.opsForSet().members(filter.pendingKey);
+            if (pending != null) {
+                for (String id : pending) {
+                    long[] offsets = filter.offsets(id);
+                    filter.setLocal(offsets);
+                    setBits(filter.name, offsets);
+                }
+            }
+            stringRedisTemplate.delete(filter.pendingKey);
+            filter.insertions.set(count.get() + (pending == null ? 0 : pending.size()));
+            filter.ready = true;
+            log.info("布隆过滤器{}重建完成：{}个id、耗时{}ms", name, count.get(), System.currentTimeMillis() - begin);
+        } finally {
+            lock.unlocks();
+        }
+    }
+
+    /**
+     * 每天凌晨重建一次：清理已删除的id、防止误判率随时间升高
+     * 所有实例都会触发、只有拿到重建锁的实例执行
+     */
+    @Scheduled(cron = "0 0 4 * * ?")
+    public void rebuildAll() {
+        for (String name : filters.keySet()) {
+            try {
+                rebuild(name);
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败：{}", name, e);
+            }
+        }
+    }
+
+    /**
+     * 定时从redis刷新本地副本
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000)
+    public void reloadAll() {
+        for (Filter filter : filters.values()) {
+            try {
+                reloadLocal(filter);
+            } catch (Exception e) {
+                log.error("刷新布隆过滤器本地副本失败：{}", filter.name, e);
+            }
+        }
+    }
+
+    /**
+     * 统计信息：放行次数、拦截次数、误判次数、误判率
+     * 误判率 = 误判次数 / (误判次数 + 拦截次数)、即所有不存在的id中被放行的比例
+     * @return
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (Filter filter : filters.values()) {
+            Map<String, Object> item = new HashMap<>();
+            long fp = filter.falsePositiveCount.sum();
+            long reject = filter.rejectCount.sum();
+            item.put("ready", filter.ready);
+            item.put("numBits", filter.numBits);
+            item.put("numHashes", filter.numHashes);
+            item.put("insertions", filter.insertions.get());
+            item.put("passCount", filter.passCount.sum());
+            item.put("rejectCount", reject);
+            item.put("falsePositiveCount", fp);
+            item.put("falsePositiveRate", fp + reject == 0 ? 0D : (double) fp / (fp + reject));
+            item.put("expectedFalsePositiveRate", filter.expectedFpp());
+            stats.put(filter.name, item);
+        }
+        return stats;
+    }
+
+    /**
+     * 从redis加载位图到本地
+     * @return redis中是否存在位图
+     */
+    private boolean reloadLocal(Filter filter) {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(filter.rawKey));
+        if (bytes == null) {
+            return false;
+        }
+        //redis的位图长度取决于设置过的最大偏移量、补齐到完整长度
+        byte[] local = new byte[filter.byteSize()];
+        System.arraycopy(bytes, 0, local, 0, Math.min(bytes.length, local.length));
+        filter.local = local;
+        filter.ready = true;
+        return true;
+    }
+
+    private void setBits(String name, long[] offsets) {
+        byte[] rawKey = name.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    private static class Filter {
+        final String name;
+        final byte[] rawKey;
+        final long numBits;
+        final int numHashes;
+        final Consumer<Consumer<Object>> idScanner;
+
+        //重建锁、重建期间新增的id（SET）
+        final String lockKey;
+        final String pendingKey;
+
+        volatile byte[] local;
+        volatile boolean ready;
+
+        final AtomicLong insertions = new AtomicLong();
+        final LongAdder passCount = new LongAdder();
+        final LongAdder rejectCount = new LongAdder();
+        final LongAdder falsePositiveCount = new LongAdder();
+
+        Filter(String name, long expectedInsertions, double fpp, Consumer<Consumer<Object>> idScanner) {
+            this.name = name;
+            this.rawKey = name.getBytes(StandardCharsets.UTF_8);
+            this.lockKey = SimpleRedisLock.KEY_PREFIX + name;
+            this.pendingKey = name + ":pending";
+            this.idScanner = idScanner;
+            //位数组长度 m = -n*ln(p)/(ln2)^2、哈希函数个数 k = m/n*ln2
+            long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            //向上对齐到字节、本地副本用byte[]、不能超过数组上限
+            this.numBits = Math.min(Math.max(64, (m + 7) / 8 * 8), (long) Integer.MAX_VALUE);
+            this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+            this.local = new byte[byteSize()];
+        }
+
+        int byteSize() {
+            return (int) (numBits / 8);
+        }
+
+        /**
+         * 双重哈希计算k个偏移量：offset_i = h1 + i*h2
+         */
+        long[] offsets(Object id) {
+            long[] hash = MurmurHash.hash128(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            long[] offsets = new long[numHashes];
+            long combined = hash[0];
+            for (int i = 0; i < numHashes; i++) {
+                offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+                combined += hash[1];
+            }
+            return offsets;
+        }
+
+        boolean containsLocal(long[] offsets) {
+            byte[] bitmap = local;
+            for (long offset : offsets) {
+                if ((bitmap[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setLocal(long[] offsets) {
+            byte[] bitmap = local;
+            synchronized (this) {
+                for (long offset : offsets) {
+                    bitmap[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                }
+            }
+        }
+
+        /**
+         * 理论误判率 (1 - e^(-kn/m))^k
+         */
+        double expectedFpp() {
+            double n = insertions.get();
+            return Math.pow(1 - Math.exp(-numHashes * n / numBits), numHashes);
+        }
+    }
+}
@@ -5,18 +5,131 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    //管理员的用户id（SET）：/admin/**的接口只允许其中的用户访问
+    public static final String ADMIN_USER_KEY = "admin:users";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
+    //blog列表中作者的昵称和头像（UserDTO）：一页blog的作者一次MGET批量查询
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    //店铺的hash缓存：列表只读取部分字段、修改时只更新变化的字段
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop-hash:";
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    //进程内一级缓存：最大条目数、存活时间（秒）、失效通知的频道
+    public static final int CACHE_LOCAL_MAX_SIZE = 10000;
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    //互斥锁方案：缓存重建完成的通知频道、没有获取到锁的实例最多等待的毫秒数
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final long CACHE_MUTEX_WAIT_MILLIS = 500L;
+
+    //布隆过滤器：店铺id空间、预计数量、误判率
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final long BLOOM_SHOP_EXPECTED_INSERTIONS = 1000000L;
+    public static final double BLOOM_FPP = 0.01;
+    //布隆过滤器重建的锁（秒）：同一时间只有一个实例重建、锁的key为lock:{过滤器名称}
+    public static final long BLOOM_REBUILD_LOCK_TTL = 600L;
+
+    //过期时间的随机比例（0~10%）：防止缓存雪崩
+    public static final double CACHE_TTL_JITTER = 0.1;
+    //提前刷新：XFetch的beta参数、redis中真实过期时间是逻辑过期时间的倍数
+    public static final double CACHE_XFETCH_BETA = 1.0;
+    public static final long CACHE_REFRESH_AHEAD_GRACE = 2L;
+    //堆外缓存：段数、条目的过期时间（秒）、店铺缓存的容量（字节）
+    public static final int CACHE_OFFHEAP_SEGMENTS = 16;
+    public static final Long CACHE_OFFHEAP_TTL = 60L;
+    public static final long CACHE_OFFHEAP_SHOP_BYTES = 128L * 1024 * 1024;
+
+    //缓存重建线程池：线程数、队列上限、记录耗时的key数量、关闭时等待的秒数
+    public static final int CACHE_REBUILD_THREADS = 10;
+    public static final int CACHE_REBUILD_QUEUE_CAPACITY = 1000;
+    public static final int CACHE_REBUILD_LATENCY_KEYS = 1000;
+    public static final long CACHE_REBUILD_DRAIN_SECONDS = 10L;
+    //缓存重建的互斥锁前缀：lock: + 缓存的key
+    public static final String LOCK_KEY_PREFIX = "lock:";
+
+    //缓存预热：每批条数、并发写入的批数
+    public static final int CACHE_WARMUP_BATCH_SIZE = 500;
+    public static final int CACHE_WARMUP_CONCURRENCY = 4;
+    //预热写入失败后的重试次数、每次重试前等待的时间（毫秒、按次数递增）
+    public static final int CACHE_WARMUP_RETRIES = 2;
+    public static final long CACHE_WARMUP_RETRY_MILLIS = 200L;
+
+    //热点key探测：1/8采样、10个1秒的桶组成滑动窗口、窗口内访问500次以上为热点、本地副本保留5秒
+    public static final int HOT_KEY_SAMPLE_RATE = 8;
+    public static final long HOT_KEY_THRESHOLD = 500L;
+    public static final int HOT_KEY_MAX_SIZE = 1000;
+    public static final int HOT_KEY_WINDOW_BUCKETS = 10;
+    public static final long HOT_KEY_BUCKET_SECONDS = 1L;
+    public static final long HOT_KEY_LOCAL_TTL = 5L;
+
+    //缓存删除：延迟双删的间隔（毫秒）、删除失败的重试队列、重试间隔（秒）、每次重试的数量
+    public static final long CACHE_DOUBLE_DELETE_DELAY = 500L;
+    public static final String CACHE_INVALIDATE_RETRY_KEY = "cache:invalidate:retry";
+    public static final long CACHE_INVALIDATE_RETRY_INTERVAL = 5L;
+    public static final int CACHE_INVALIDATE_RETRY_BATCH = 100;
+
+    //店铺类型快照：hash（version、dataVersion、data）、修改通知的频道
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
+    public static final String SHOP_TYPE_CHANGED_CHANNEL = "cache:shop-type:changed";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //秒杀库存的分片数：seckill:stock:shards:{voucherId}、分片key为seckill:stock:{voucherId:i}、seckill:order:{voucherId:i}
+    public static final String SECKILL_STOCK_SHARDS_KEY = "seckill:stock:shards:";
+    public static final int SECKILL_STOCK_MAX_SHARDS = 64;
+    //本地缓存的分片数：条目数上限、分片券的存活时间（分钟）、没有分片的券的存活时间（毫秒、其他实例可能正在创建分片）
+    public static final int SECKILL_SHARD_COUNT_MAX_SIZE = 10000;
+    public static final long SECKILL_SHARD_COUNT_TTL = 10L;
+    public static final long SECKILL_SHARD_COUNT_MISS_TTL = 1000L;
+    //秒杀券卖完的广播频道、卖完后每隔多少秒放行一个请求到redis重新确认
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final long SECKILL_SOLD_OUT_RECHECK = 5L;
+    //本地库存提示的条目数上限、存活时间（分钟）：过期后由秒杀脚本重新判断
+    public static final int SECKILL_HINT_MAX_SIZE = 10000;
+    public static final long SECKILL_HINT_TTL = 10L;
+    //已下单用户的集合：seckill:order:{voucherId}
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀订单的消息队列（stream）、消费者组、每次阻塞读取的时间（毫秒）
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final long SECKILL_ORDER_BLOCK_MILLIS = 2000L;
+    //订单攒批：每批最多的订单数、第一条订单到达后最多等待的时间（毫秒）
+    public static final int SECKILL_ORDER_BATCH_SIZE = 200;
+    public static final long SECKILL_ORDER_BATCH_MILLIS = 50L;
+    //订单处理的分区数（线程数）、每个分区队列的容量：按用户id分区、同一个用户的订单在同一个线程中处理
+    public static final int SECKILL_ORDER_PARTITIONS = 4;
+    public static final int SECKILL_ORDER_QUEUE_CAPACITY = 1000;
+    //pending-list中空闲超过该时间（秒）的订单认为消费者已宕机、由其他消费者认领
+    public static final long SECKILL_ORDER_CLAIM_IDLE = 60L;
+    public static final int SECKILL_ORDER_CLAIM_BATCH = 100;
+    //投递超过该次数仍然失败的订单转入死信队列
+    public static final int SECKILL_ORDER_MAX_DELIVERIES = 5;
+    public static final String SECKILL_ORDER_DEAD_LETTER_STREAM = "stream.orders.dlq";
+    //订单处理状态：hash（status、userId）、状态变化的广播频道、保留的时间（秒）、长轮询最多等待的时间（秒）
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final long SECKILL_ORDER_STATUS_TTL = 1800L;
+    public static final long SECKILL_ORDER_STATUS_MAX_WAIT = 30L;
+    //限流：滑动窗口的key为limit:{name}:{资源id}:{userId}
+    public static final String RATE_LIMIT_KEY = "limit:";
+    //本地令牌桶最多的数量、存活时间（分钟）：超过数量按最久未使用淘汰、过期后重新创建（每次重新创建最多多放行一个burst）
+    public static final int RATE_LIMIT_MAX_BUCKETS = 10000;
+    public static final long RATE_LIMIT_BUCKET_TTL = 10L;
+    //秒杀限流：每张券每个实例每秒发放的令牌数、令牌桶容量、每个用户对每张券在窗口（毫秒）内最多的请求数
+    public static final double SECKILL_LIMIT_PERMITS_PER_SECOND = 1000D;
+    public static final int SECKILL_LIMIT_BURST = 200;
+    public static final long SECKILL_LIMIT_USER_WINDOW = 1000L;
+    public static final int SECKILL_LIMIT_USER_MAX = 5;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    //店铺类型的有序集合索引：shop:type:{typeId}:{排序字段}、shop:type:{typeId}:ready表示索引已建立
+    public static final String SHOP_TYPE_INDEX_KEY = "shop:type:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;   //逻辑过期时间
     private Object data;    //是要存入redis的万能数据：不需要修改其他原代码
+    private Long rebuildCost;   //上一次重建缓存的耗时（毫秒）：用于提前刷新的概率计算
 }
@@ -30,20 +30,42 @@ public class RedisIdWorker {
     }
     public long nextId(String keyPrefix){
         //1、生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);//当前秒数
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp();
         //2、生产序列号
         //2.1、获取当天日期：为key添加一个每天日期的后缀、即不会超出范围、还能统计每天的单数
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
         //2.2、自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, timestamp));
 
         //3、拼接
-        /*
-        timestamp << COUNT_BITS:生成的id64位、时间戳左移32位留下32位给序列号
-        左移补0、剩下的用或运算保留的都是序列号
-         */
+        return compose(timestamp, count);
+    }
+
+    /**
+     * 当前的时间戳部分：相对开始时间的秒数
+     * @return
+     */
+    public static long timestamp() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的key：icr:{keyPrefix}:{yyyyMMdd}、日期由时间戳计算、和时间戳部分始终一致
+     * 序列号也可以在lua脚本中自增（INCR这个key）、再由compose拼接成id
+     * @param keyPrefix
+     * @param timestamp timestamp()的返回值
+     * @return
+     */
+    public static String counterKey(String keyPrefix, long timestamp) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(timestamp + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+        return "icr:" + keyPrefix + ":" + time.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+    }
+
+    /**
+     * 拼接id
+     * timestamp << COUNT_BITS:生成的id64位、时间戳左移32位留下32位给序列号
+     * 左移补0、剩下的用或运算保留的都是序列号
+     */
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
 
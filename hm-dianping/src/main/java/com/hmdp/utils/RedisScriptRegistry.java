@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * lua脚本注册中心：resources下的每个lua文件是一个脚本、脚本名为文件名（不含.lua）
+ * 1、启动时用SCRIPT LOAD预加载全部脚本、并检查redis返回的SHA1和本地计算的是否一致
+ * 2、执行时只发送EVALSHA：redis返回NOSCRIPT（主从切换、SCRIPT FLUSH之后）时重新加载脚本再执行一次
+ * 3、支持管道批量执行同一个脚本
+ * 4、记录每个脚本的调用次数、耗时、失败次数、重新加载次数
+ * @author zyf
+ * @Data 2024/3/3 - 10:10
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    private static final String LOCATION = "classpath*:*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //脚本名 -> 脚本
+    private final Map<String, Script> scripts = new TreeMap<>();
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+                String filename = resource.getFilename();
+                if (filename == null) {
+                    continue;
+                }
+                try (InputStream in = resource.getInputStream()) {
+                    String body = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+                    String name = filename.substring(0, filename.length() - ".lua".length());
+                    scripts.put(name, new Script(name, body));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("读取lua脚本失败", e);
+        }
+    }
+
+    /**
+     * 启动时预加载全部脚本：redis暂时不可用时不影响启动、执行时遇到NOSCRIPT会再加载
+     */
+    @PostConstruct
+    public void preload() {
+        for (Script script : scripts.values()) {
+            try {
+                load(script);
+            } catch (Exception e) {
+                log.warn("预加载lua脚本失败：{}", script.name, e);
+            }
+        }
+        log.info("预加载lua脚本：{}", scripts.keySet());
+    }
+
+    /**
+     * 执行脚本（EVALSHA）
+     * @param name 脚本名
+     * @param resultType 返回值类型：Long、Boolean、String、List
+     * @param keys
+     * @param args
+     * @return 字符串类型的返回值会转为String
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        Script script = get(name);
+        ReturnType returnType = ReturnType.fromJavaType(resultType);
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        long begin = System.nanoTime();
+        try {
+            Object result;
+            try {
+                result = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                        evalSha(connection, script, returnType, keys.size(), keysAndArgs));
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                //脚本缓存被清空：重新加载后再执行一次
+                load(script);
+                result = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                        evalSha(connection, script, returnType, keys.size(), keysAndArgs));
+            }
+            script.record(1, System.nanoTime() - begin);
+            return (T) deserialize(result);
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * 用管道批量执行同一个脚本：一次网络往返
+     * 收到NOSCRIPT时重新加载脚本后整批重试：脚本缓存被清空时整批都会返回NOSCRIPT、不会有部分执行成功的调用
+     * @param name 脚本名
+     * @param resultType 返回值类型
+     * @param calls 每次调用的keys和参数
+     * @return 按调用顺序返回结果
+     */
+    public List<Object> executePipelined(String name, Class<?> resultType, List<Call> calls) {
+        if (calls.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Script script = get(name);
+        ReturnType returnType = ReturnType.fromJavaType(resultType);
+        List<byte[][]> encoded = new ArrayList<>(calls.size());
+        for (Call call : calls) {
+            encoded.add(keysAndArgs(call.keys, call.args));
+        }
+        long begin = System.nanoTime();
+        try {
+            List<Object> results;
+            try {
+                results = pipeline(script, returnType, calls, encoded);
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                load(script);
+                results = pipeline(script, returnType, calls, encoded);
+            }
+            script.record(calls.size(), System.nanoTime() - begin);
+            return results;
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        }
+    }
+
+    private List<Object> pipeline(Script script, ReturnType returnType, List<Call> calls, List<byte[][]> encoded) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < calls.size(); i++) {
+                evalSha(connection, script, returnType, calls.get(i).keys.size(), encoded.get(i));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 各脚本的SHA1和调用统计
+     * @return
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Script script : scripts.values()) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long calls = script.calls.sum();
+            map.put("sha1", script.sha1);
+            map.put("calls", calls);
+            map.put("errors", script.errors.sum());
+            map.put("reloads", script.reloads.sum());
+            map.put("meanMs", calls == 0 ? 0D : script.totalNanos.sum() / 1_000_000D / calls);
+            map.put("maxMs", script.maxNanos.get() / 1_000_000D);
+            stats.put(script.name, map);
+        }
+        return stats;
+    }
+
+    private Script get(String name) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在：" + name);
+        }
+        return script;
+    }
+
+    /**
+     * SCRIPT LOAD：redis返回的SHA1和本地不一致时说明脚本内容被改动过（编码、换行）、记录日志
+     */
+    private void load(Script script) {
+        String sha1 = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.body));
+        script.reloads.increment();
+        if (!script.sha1.equals(sha1)) {
+            log.error("lua脚本的SHA1不一致：{}、本地={}、redis={}", script.name, script.sha1, sha1);
+        }
+    }
+
+    private static Object evalSha(RedisConnection connection, Script script, ReturnType returnType,
+                                  int numKeys, byte[][] keysAndArgs) {
+        return connection.scriptingCommands().evalSha(script.sha1, returnType, numKeys, keysAndArgs);
+    }
+
+    private static byte[][] keysAndArgs(List<String> keys, Object[] args) {
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (Object arg : args) {
+            keysAndArgs[i++] = String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+        }
+        return keysAndArgs;
+    }
+
+    private static Object deserialize(Object result) {
+        if (result instanceof byte[]) {
+            return new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        if (result instanceof List) {
+            List<?> list = (List<?>) result;
+            List<Object> converted = new ArrayList<>(list.size());
+            for (Object item : list) {
+                converted.add(deserialize(item));
+            }
+            return converted;
+        }
+        return result;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        Throwable cause = NestedExceptionUtils.getMostSpecificCause(e);
+        return cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT");
+    }
+
+    /**
+     * 管道中的一次调用
+     */
+    public static class Call {
+        final List<String> keys;
+        final Object[] args;
+
+        public Call(List<String> keys, Object... args) {
+            this.keys = keys;
+            this.args = args;
+        }
+    }
+
+    private static class Script {
+        final String name;
+        final byte[] body;
+        final String sha1;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder reloads = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Script(String name, String body) {
+            this.name = name;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            this.sha1 = SecureUtil.sha1(body);
+        }
+
+        void record(int count, long nanos) {
+            calls.add(count);
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的处理状态：秒杀接口先返回订单id、订单由消费者异步写入数据库
+ * 1、通过秒杀资格判断后写入QUEUED：只在没有状态时写入（HSETNX）、消费者先写入的结果不会被覆盖
+ * 2、消费者在事务提交后写入SUCCESS或FAILED、并广播状态变化
+ * 3、查询订单状态的长轮询注册监听：收到广播后立即返回、不需要客户端反复查询
+ * @author zyf
+ * @Data 2024/3/3 - 17:10
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus implements MessageListener {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String SUCCESS = "SUCCESS";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //订单id -> 等待状态变化的监听
+    private final Map<Long, Set<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    public static String statusKey(long orderId) {
+        return SECKILL_ORDER_STATUS_KEY + orderId;
+    }
+
+    /**
+     * 订单已经通过秒杀资格判断、等待写入数据库：已经有状态（消费者已处理完）时不覆盖
+     * 在秒杀接口的关键路径上：HSETNX、HSET、EXPIRE在一个管道中、只有一次网络往返
+     * @param orderId
+     * @param userId
+     */
+    public void queued(long orderId, Long userId) {
+        byte[] key = statusKey(orderId).getBytes(StandardCharsets.UTF_8);
+        byte[] statusField = "status".getBytes(StandardCharsets.UTF_8);
+        byte[] statusValue = QUEUED.getBytes(StandardCharsets.UTF_8);
+        byte[] userField = "userId".getBytes(StandardCharsets.UTF_8);
+        byte[] userValue = userId.toString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hSetNX(key, statusField, statusValue);
+            connection.hashCommands().hSet(key, userField, userValue);
+            connection.keyCommands().expire(key, SECKILL_ORDER_STATUS_TTL);
+            return null;
+        });
+    }
+
+    /**
+     * 撤销排队状态：订单没有写入消息队列
+     * @param orderId
+     */
+    public void remove(long orderId) {
+        stringRedisTemplate.delete(statusKey(orderId));
+    }
+
+    /**
+     * 写入处理结果并广播：一批订单在一个管道中完成
+     * @param orders 订单id -> 用户id
+     * @param status SUCCESS、FAILED
+     */
+    public void complete(Map<Long, Long> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        byte[] statusField = "status".getBytes(StandardCharsets.UTF_8);
+        byte[] statusValue = status.getBytes(StandardCharsets.UTF_8);
+        byte[] userField = "userId".getBytes(StandardCharsets.UTF_8);
+        byte[] channel = SECKILL_ORDER_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, Long> order : orders.entrySet()) {
+                byte[] key = statusKey(order.getKey()).getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> value = new HashMap<>(4);
+                value.put(statusField, statusValue);
+                value.put(userField, order.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                connection.hashCommands().hMSet(key, value);
+                connection.keyCommands().expire(key, SECKILL_ORDER_STATUS_TTL);
+                connection.publish(channel, (order.getKey() + ":" + status).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态
+     * @param orderId
+     * @return status、userId：状态已过期或订单不存在时为空
+     */
+    public Map<Object, Object> get(long orderId) {
+        return stringRedisTemplate.opsForHash().entries(statusKey(orderId));
+    }
+
+    /**
+     * 监听订单状态变化
+     * @param orderId
+     * @param listener 参数为新的状态
+     */
+    public void addListener(Long orderId, Consumer<String> listener) {
+        listeners.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet()).add(listener);
+    }
+
+    public void removeListener(Long orderId, Consumer<String> listener) {
+        listeners.computeIfPresent(orderId, (id, set) -> {
+            set.remove(listener);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * 收到状态变化的广播：orderId:status
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        Long orderId;
+        try {
+            orderId = Long.valueOf(body.substring(0, Math.max(i, 0)));
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的订单状态广播：{}", body);
+            return;
+        }
+        Set<Consumer<String>> set = listeners.remove(orderId);
+        if (set == null) {
+            return;
+        }
+        String status = body.substring(i + 1);
+        for (Consumer<String> listener : set) {
+            listener.accept(status);
+        }
+    }
+}
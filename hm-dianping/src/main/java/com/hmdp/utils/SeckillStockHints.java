@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 本地的秒杀库存提示：券卖完后、本实例直接拒绝请求、不再执行秒杀脚本
+ * 1、秒杀脚本返回扣减后的剩余库存、剩余为0时立即标记卖完
+ * 2、脚本返回库存不足时标记卖完：库存key不存在（券不存在、还没有预热）时不标记、不会为任意的id创建提示和广播
+ * 3、标记卖完时广播到其他实例（pub/sub）、收到广播的实例同样标记
+ * 4、卖完之后每隔SECKILL_SOLD_OUT_RECHECK秒放行一个请求到redis：库存可能被归还（分片扣减失败的补偿、人工补货）
+ * @author zyf
+ * @Data 2024/3/2 - 15:20
+ */
+@Slf4j
+@Component
+public class SeckillStockHints implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //优惠券id -> 库存提示：数量有上限、过期后由秒杀脚本重新判断
+    private final LocalCache hints = new LocalCache(SECKILL_HINT_MAX_SIZE, TimeUnit.MINUTES.toMillis(SECKILL_HINT_TTL));
+    private final long recheckMillis = TimeUnit.SECONDS.toMillis(SECKILL_SOLD_OUT_RECHECK);
+
+    /**
+     * 是否可以直接判断为卖完
+     * @param voucherId
+     * @return 卖完并且还没到重新检查的时间返回true、到了重新检查的时间时只有一个请求返回false
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Hint hint = (Hint) hints.get(voucherId.toString());
+        if (hint == null) {
+            return false;
+        }
+        synchronized (hint) {
+            if (!hint.soldOut) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (now - hint.checkedAt < recheckMillis) {
+                return true;
+            }
+            //放行这一个请求去redis确认、其他请求继续等下一个间隔
+            hint.checkedAt = now;
+            return false;
+        }
+    }
+
+    /**
+     * 秒杀成功：剩余库存为0时标记卖完
+     * @param voucherId
+     * @param remaining 扣减后的剩余库存、未知时传null
+     */
+    public void onSuccess(Long voucherId, Long remaining) {
+        //库存被归还过：清除卖完标记、没有提示时不创建
+        Hint hint = (Hint) hints.get(voucherId.toString());
+        if (hint != null) {
+            synchronized (hint) {
+                hint.soldOut = false;
+            }
+        }
+        if (remaining != null && remaining <= 0) {
+            markSoldOut(voucherId);
+        }
+    }
+
+    /**
+     * 标记卖完：本实例第一次标记时广播到其他实例
+     * 只在库存key存在并且已经扣减为0时调用
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        if (setSoldOut(voucherId)) {
+            try {
+                stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+            } catch (Exception e) {
+                //其他实例会在脚本返回库存不足时自行标记
+                log.warn("广播秒杀券卖完失败：{}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * @return 之前没有标记为卖完时返回true
+     */
+    private boolean setSoldOut(Long voucherId) {
+        Hint hint = hintFor(voucherId);
+        synchronized (hint) {
+            hint.checkedAt = System.currentTimeMillis();
+            if (hint.soldOut) {
+                return false;
+            }
+            hint.soldOut = true;
+            return true;
+        }
+    }
+
+    private Hint hintFor(Long voucherId) {
+        String key = voucherId.toString();
+        Object hint = hints.get(key);
+        if (hint == null) {
+            //加锁创建：同一张券只有一个提示
+            synchronized (hints) {
+                hint = hints.get(key);
+                if (hint == null) {
+                    hint = new Hint();
+                    hints.put(key, hint);
+                }
+            }
+        }
+        return (Hint) hint;
+    }
+
+    /**
+     * 收到其他实例的卖完广播
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            setSoldOut(Long.valueOf(body));
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的卖完广播：{}", body);
+        }
+    }
+
+    private static class Hint {
+        boolean soldOut;
+        //标记卖完或者最近一次放行检查的时间
+        long checkedAt;
+    }
+}
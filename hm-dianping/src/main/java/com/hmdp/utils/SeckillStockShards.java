@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 热点秒杀券的分片库存：一张券的库存拆成K个key、请求分散到K个key上（redis集群中分散到不同节点）
+ * 1、每个分片的key带有相同的hash tag {voucherId:i}：库存和已下单用户集合在同一个slot、单个分片的lua脚本是原子的
+ * 2、用户按id固定落在一个分片（所属分片）：一人一单的判断只在所属分片的集合中进行、跨分片也不会重复下单
+ * 3、所属分片库存不足时依次到其他分片扣减（溢出）、全部不足时撤销用户的登记
+ * 4、扣减成功后订单写入消息队列、写入失败时归还库存并撤销登记
+ * 跨分片的操作不在一个脚本中：实例在两步之间宕机时最多少卖、不会超卖
+ * @author zyf
+ * @Data 2024/3/2 - 10:30
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    //seckill_reserve.lua、seckill_take.lua
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    //优惠券id -> 分片数：创建后不会变化、数量有上限
+    //没有分片（redis中没有分片数）的结果只保存很短的时间：其他实例刚创建的分片券很快就能看到
+    private final LocalCache shardCounts = new LocalCache(SECKILL_SHARD_COUNT_MAX_SIZE, TimeUnit.MINUTES.toMillis(SECKILL_SHARD_COUNT_TTL));
+
+    /**
+     * 把库存平均分到各个分片（余数分给前面的分片）、并记录分片数
+     * @param voucherId
+     * @param stock 总库存
+     * @param shards 分片数
+     */
+    public void init(Long voucherId, int stock, int shards) {
+        if (shards < 1 || shards > SECKILL_STOCK_MAX_SHARDS) {
+            throw new IllegalArgumentException("库存分片数必须在1到" + SECKILL_STOCK_MAX_SHARDS + "之间：" + shards);
+        }
+        Map<String, String> values = new HashMap<>(shards * 2);
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            values.put(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        //集群模式下各分片的key不在同一个slot：逐个写入
+        values.forEach((key, value) -> stringRedisTemplate.opsForValue().set(key, value));
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId.toString(), shards);
+    }
+
+    /**
+     * 优惠券的分片数：没有分片的券返回1
+     * @param voucherId
+     * @return
+     */
+    public int shardCount(Long voucherId) {
+        Object cached = shardCounts.get(voucherId.toString());
+        if (cached != null) {
+            return (Integer) cached;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+        if (StrUtil.isBlank(shards)) {
+            shardCounts.put(voucherId.toString(), 1, SECKILL_SHARD_COUNT_MISS_TTL);
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardCounts.put(voucherId.toString(), count);
+        return count;
+    }
+
+    /**
+     * 分片库存的秒杀
+     * @param voucherId
+     * @param userId
+     * @param orderId
+     * @return 0：成功（订单已写入消息队列）、1：库存不足、2：已下过单
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        int shards = shardCount(voucherId);
+        int home = (int) Math.floorMod(userId, (long) shards);
+        String orderKey = orderKey(voucherId, home);
+        //1、所属分片：判断是否下过单、登记用户、扣减库存
+        Long reserved = scriptRegistry.execute("seckill_reserve", Long.class,
+                Arrays.asList(stockKey(voucherId, home), orderKey), userId.toString());
+        int r = reserved == null ? 3 : reserved.intValue();
+        if (r == 2) {
+            return 2;
+        }
+        //2、所属分片库存不足：依次从其他分片扣减
+        int taken = r == 0 ? home : -1;
+        for (int i = 1; taken < 0 && i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long ok = scriptRegistry.execute("seckill_take", Long.class,
+                    Collections.singletonList(stockKey(voucherId, shard)));
+            if (ok != null && ok == 1L) {
+                taken = shard;
+            }
+        }
+        if (taken < 0) {
+            //全部分片都没有库存：撤销登记、用户之后还可以重试
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+            return 1;
+        }
+        //3、订单写入消息队列
+        Map<String, String> order = new HashMap<>(8);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        try {
+            //订单处理状态在写入消息队列之前：消费者写入的结果不会被覆盖
+            seckillOrderStatus.queued(orderId, userId);
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, order);
+        } catch (RuntimeException e) {
+            //写入失败：归还库存、撤销登记和排队状态
+            stringRedisTemplate.opsForValue().increment(stockKey(voucherId, taken));
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+            seckillOrderStatus.remove(orderId);
+            throw e;
+        }
+        return 0;
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
@@ -1,9 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -17,6 +15,8 @@ public class SimpleRedisLock implements ILock{
 
     private String name;    //锁的名称
     private StringRedisTemplate stringRedisTemplate;
+    //lua脚本：unlock.lua
+    private RedisScriptRegistry scriptRegistry;
     //锁前缀
     public static final String KEY_PREFIX = "lock:";
 
@@ -24,19 +24,10 @@ public class SimpleRedisLock implements ILock{
     //锁的标识,这里用的是hutool工具类,true:去除uuid的_
     public static final String ID_PREFIX = UUID.fastUUID().toString(true)+"-";
 
-    /*
-    初始化lua脚本
-     */
-    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
     }
 
     /**
@@ -80,8 +71,8 @@ public class SimpleRedisLock implements ILock{
      * lua脚本释放锁：为判断锁标识和释放锁的操作添加原子性
      */
     public void unlocks(){
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+        scriptRegistry.execute(
+                "unlock", Long.class,
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId()
         );
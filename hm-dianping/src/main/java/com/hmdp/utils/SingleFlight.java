@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并：同一个JVM内、同一个key同时只有一个线程执行加载逻辑、其他线程等待并共享结果
+ * @author zyf
+ * @Data 2024/2/22 - 09:30
+ */
+public class SingleFlight {
+
+    //正在执行中的请求：key -> 结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载逻辑：已有线程在加载同一个key时、直接等待它的结果
+     * @param key
+     * @param loader 加载逻辑
+     * @return
+     * @param <R>
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R execute(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, future);
+        //1、已经有线程在加载：等待结果
+        if (inFlight != null) {
+            return (R) await(inFlight);
+        }
+        //2、自己负责加载、完成后唤醒等待的线程
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * 当前key是否有线程在加载
+     * @param key
+     * @return
+     */
+    public boolean isInFlight(String key) {
+        return calls.containsKey(key);
+    }
+
+    private Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            //加载线程抛出的异常原样抛给等待的线程
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+---
+--- Generated by EmmyLua(https://github.com/EmmyLua)
+--- Created by zyf.
+--- DateTime: 2024/2/27 11:05
+---
+-- 修改hash缓存中的部分字段：只有缓存存在（且不是空值）时才写入、不会创建出不完整的hash
+-- KEYS[1]：缓存的key   ARGV：字段、值交替排列
+if (redis.call('hget', KEYS[1], '_') ~= '1') then
+    return 0
+end
+redis.call('hmset', KEYS[1], unpack(ARGV))
+return 1
@@ -0,0 +1,31 @@
+---
+--- Generated by EmmyLua(https://github.com/EmmyLua)
+--- Created by zyf.
+--- DateTime: 2024/3/3 20:15
+---
+
+--1、参数列表
+--1.1、滑动窗口的zset：score为请求时间（毫秒）
+local key = KEYS[1]
+--1.2、当前时间（毫秒）、窗口大小（毫秒）、窗口内最多的请求数、本次请求的唯一标识
+local now = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+local member = ARGV[4]
+
+--2、脚本业务：返回 0：放行、大于0：被拒绝、需要等待的毫秒数
+--2.1、移除窗口之外的请求
+redis.call('zremrangebyscore', key, 0, now - window)
+--2.2、窗口内的请求数没有达到上限：记录本次请求
+if (redis.call('zcard', key) < limit) then
+    redis.call('zadd', key, now, member)
+    redis.call('pexpire', key, window)
+    return 0
+end
+--2.3、达到上限：最早的请求移出窗口后才能再次请求
+local oldest = redis.call('zrange', key, 0, 0, 'WITHSCORES')
+local wait = tonumber(oldest[2]) + window - now
+if (wait < 1) then
+    wait = 1
+end
+return wait
@@ -5,30 +5,39 @@
 ---
 
 --1、参数列表
---1.1、优惠卷id
+--1.1、库存key、已下单用户的集合、订单消息队列、订单id的序列号
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local streamKey = KEYS[3]
+local counterKey = KEYS[4]
+--1.2、优惠卷id
 local voucherId = ARGV[1]
---1.2、用户id
+--1.3、用户id
 local userId  = ARGV[2]
+--1.4、订单id的时间戳部分：通过资格判断后才生成序列号、被拒绝的请求不消耗id
+local timestamp = ARGV[3]
 
---2、数据key
---2.1、库存key
-local stockKey = 'seckill:stock:'+voucherId
---2.2、订单key
-local orderKey = 'seckill:order:'+voucherId
-
---3、脚本业务
---3.1、判断库存是否充足
-if (tonumber(redis.call('get' , stockKey)) <= 0) then
+--2、脚本业务：返回 {结果, 剩余库存, 订单id的序列号}、结果 0：成功、1：库存不足、2：已下过单、3：库存不存在
+--2.1、判断库存是否充足：库存还没有写入redis（券不存在、还没有预热）时单独返回、不能当作卖完
+local stock = tonumber(redis.call('get' , stockKey))
+if (stock == nil) then
+    return {3, 0}
+end
+if (stock <= 0) then
     --库存不足
-    return 1
+    return {1, 0}
 end
---3.2、判断用户是否过下单
-if (redis.call('sismember',orderKey,userId)) then
+--2.2、判断用户是否过下单：sismember返回0或1、在lua中都是真值
+if (redis.call('sismember',orderKey,userId) == 1) then
     --已下过单
-    return 2
+    return {2, stock}
 end
---3.4、扣库存
+--2.3、扣库存
 redis.call('incrby',stockKey,-1)
---3.5、添加订单信息
+--2.4、添加订单信息
 redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+--2.5、生成订单id的序列号：id = timestamp << 32 | seq、lua的数字是double、不能精确表示64位id、由java拼接
+local seq = redis.call('incr', counterKey)
+--2.6、订单写入消息队列：XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'ts', timestamp, 'seq', seq)
+return {0, stock - 1, seq}
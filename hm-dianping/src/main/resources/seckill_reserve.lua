@@ -0,0 +1,24 @@
+---
+--- 分片库存秒杀第一步：在用户所属的分片上判断是否下过单、登记用户、扣减该分片的库存
+--- KEYS[1]：所属分片的库存key、KEYS[2]：所属分片的已下单用户集合
+--- ARGV[1]：用户id
+--- 返回 0：扣减成功、2：已下过单、3：所属分片库存不足（用户已登记、需要到其他分片扣减）
+---
+
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local userId = ARGV[1]
+
+--1、判断用户是否下过单：同一个用户总是落在同一个分片、集合只在这个分片里
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+--2、先登记用户：并发的重复请求会在上一步被拦截
+redis.call('sadd', orderKey, userId)
+--3、扣减所属分片的库存
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    return 3
+end
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,12 @@
+---
+--- 分片库存秒杀第二步：所属分片库存不足时、从其他分片扣减一个库存
+--- KEYS[1]：分片的库存key
+--- 返回 1：扣减成功、0：库存不足
+---
+
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,13 @@
+---
+--- Generated by EmmyLua(https://github.com/EmmyLua)
+--- Created by zyf.
+--- DateTime: 2024/2/26 15:20
+---
+-- 写入店铺类型快照：只有比redis中已有快照更新的版本才能写入、防止旧数据覆盖新数据
+-- KEYS[1]：快照的hash   ARGV[1]：版本号   ARGV[2]：JSON数据
+local current = redis.call('hget', KEYS[1], 'dataVersion')
+if (current and tonumber(ARGV[1]) <= tonumber(current)) then
+    return 0
+end
+redis.call('hmset', KEYS[1], 'dataVersion', ARGV[1], 'data', ARGV[2])
+return 1
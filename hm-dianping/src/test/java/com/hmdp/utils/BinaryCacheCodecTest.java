@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 二进制编解码器：往返、压缩、空字段、损坏的数据
+ * @author zyf
+ * @Data 2024/3/4 - 10:00
+ */
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123_000_000));
+        return shop;
+    }
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        byte[] bytes = codec.encode(shop);
+        assertTrue(codec.supports(bytes));
+        assertFalse(JsonCacheCodec.INSTANCE.supports(bytes));
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testNullFields() {
+        //没有设置的字段（images、updateTime、distance）解码后仍然为null
+        Shop shop = new Shop();
+        shop.setId(2L);
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop, decoded);
+        assertNull(decoded.getName());
+        assertNull(decoded.getCreateTime());
+    }
+
+    @Test
+    void testCompressedRoundTrip() {
+        Shop shop = shop();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("店铺介绍");
+        }
+        shop.setImages(sb.toString());
+        byte[] bytes = codec.encode(shop);
+        //重复的大字段压缩后远小于原始长度
+        assertTrue(bytes.length < sb.length());
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testLogicalExpireRoundTrip() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        //逻辑过期时间按毫秒保存
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(30).truncatedTo(ChronoUnit.MILLIS));
+        redisData.setRebuildCost(42L);
+
+        RedisData decoded = codec.decodeWithLogicalExpire(codec.encodeWithLogicalExpire(redisData), Shop.class);
+        assertEquals(redisData, decoded);
+    }
+
+    @Test
+    void testLogicalExpireRejectsPlainValue() {
+        //普通缓存值没有逻辑过期标记
+        assertNull(codec.decodeWithLogicalExpire(codec.encode(shop()), Shop.class));
+    }
+
+    @Test
+    void testSchemaMismatch() {
+        //类结构指纹不同：按未命中处理
+        assertNull(codec.decode(codec.encode(shop()), Voucher.class));
+    }
+
+    @Test
+    void testCorruptInput() {
+        byte[] bytes = codec.encode(shop());
+        //未知的版本
+        byte[] unknownVersion = bytes.clone();
+        unknownVersion[1] = 9;
+        assertNull(codec.decode(unknownVersion, Shop.class));
+        //数据头不完整
+        byte[] header = new byte[10];
+        System.arraycopy(bytes, 0, header, 0, header.length);
+        assertFalse(codec.supports(header));
+        assertNull(codec.decode(header, Shop.class));
+        //数据被截断：抛出异常、由CacheClient按反序列化失败处理
+        byte[] truncated = new byte[bytes.length - 8];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertThrows(RuntimeException.class, () -> codec.decode(truncated, Shop.class));
+    }
+}
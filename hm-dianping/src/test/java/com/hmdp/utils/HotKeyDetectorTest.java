@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点key探测：达到阈值成为热点、窗口过后自动解除、热点数量上限被过期热点占满时仍能探测新热点
+ * @author zyf
+ * @Data 2024/3/4 - 11:10
+ */
+class HotKeyDetectorTest {
+
+    @Test
+    void testPromoteAfterThreshold() {
+        //每次访问都采样、窗口内3次即为热点
+        HotKeyDetector detector = new HotKeyDetector(1, 3, 10, 4, 1000);
+        assertFalse(detector.recordAndCheck("cache:shop:1"));
+        assertFalse(detector.recordAndCheck("cache:shop:1"));
+        assertTrue(detector.recordAndCheck("cache:shop:1"));
+        assertFalse(detector.recordAndCheck("cache:shop:2"));
+        assertTrue(detector.estimate("cache:shop:1") >= 3);
+
+        List<Map<String, Object>> hotKeys = detector.getHotKeys();
+        assertEquals(1, hotKeys.size());
+        assertEquals("cache:shop:1", hotKeys.get(0).get("key"));
+    }
+
+    @Test
+    void testExpireAfterWindow() throws InterruptedException {
+        //窗口：2个200毫秒的桶
+        HotKeyDetector detector = new HotKeyDetector(1, 3, 10, 2, 200);
+        for (int i = 0; i < 3; i++) {
+            detector.recordAndCheck("cache:shop:1");
+        }
+        assertTrue(detector.getHotKeys().size() == 1);
+        Thread.sleep(1000);
+        assertTrue(detector.getHotKeys().isEmpty());
+        //窗口内的计数已经清零：一次访问不会重新成为热点
+        assertFalse(detector.recordAndCheck("cache:shop:1"));
+    }
+
+    @Test
+    void testPromoteAfterHotKeysExpired() throws InterruptedException {
+        //最多2个热点
+        HotKeyDetector detector = new HotKeyDetector(1, 3, 2, 2, 200);
+        for (int i = 0; i < 3; i++) {
+            detector.recordAndCheck("cache:shop:1");
+            detector.recordAndCheck("cache:shop:2");
+        }
+        //上限已满：新的key不能成为热点
+        for (int i = 0; i < 3; i++) {
+            detector.recordAndCheck("cache:shop:3");
+        }
+        assertFalse(detector.recordAndCheck("cache:shop:3"));
+        //之前的热点过期后（没有再被查询）、新的key可以成为热点
+        Thread.sleep(1000);
+        for (int i = 0; i < 2; i++) {
+            detector.recordAndCheck("cache:shop:4");
+        }
+        assertTrue(detector.recordAndCheck("cache:shop:4"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 一级缓存：命中、空值标记、过期、容量上限、按前缀删除
+ * @author zyf
+ * @Data 2024/3/4 - 10:30
+ */
+class LocalCacheTest {
+
+    @Test
+    void testGetAndPut() {
+        LocalCache cache = new LocalCache(100, 60_000);
+        assertNull(cache.get("cache:shop:1"));
+        cache.put("cache:shop:1", "shop1");
+        assertEquals("shop1", cache.get("cache:shop:1"));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    void testNullValue() {
+        //缓存了空值：返回标记对象、和没有缓存区分开
+        LocalCache cache = new LocalCache(100, 60_000);
+        cache.put("cache:shop:0", null);
+        assertSame(LocalCache.NULL_VALUE, cache.get("cache:shop:0"));
+    }
+
+    @Test
+    void testExpire() throws InterruptedException {
+        LocalCache cache = new LocalCache(100, 60_000);
+        cache.put("cache:shop:1", "shop1", 1);
+        Thread.sleep(5);
+        assertNull(cache.get("cache:shop:1"));
+        assertEquals(0L, cache.size());
+    }
+
+    @Test
+    void testMaxSize() {
+        //16个分段、每段最多2个条目
+        LocalCache cache = new LocalCache(32, 60_000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("cache:shop:" + i, i);
+        }
+        assertTrue(cache.size() <= 32);
+        assertEquals(1000L - cache.size(), cache.getEvictionCount());
+        //最后写入的条目一定还在
+        assertEquals(999, cache.get("cache:shop:999"));
+    }
+
+    @Test
+    void testInvalidate() {
+        LocalCache cache = new LocalCache(100, 60_000);
+        cache.put("cache:shop:1", "shop1");
+        cache.put("cache:shop:2", "shop2");
+        cache.put("cache:shop-type", "types");
+        cache.invalidate("cache:shop:1");
+        assertNull(cache.get("cache:shop:1"));
+        cache.invalidatePrefix("cache:shop:");
+        assertNull(cache.get("cache:shop:2"));
+        assertEquals("types", cache.get("cache:shop-type"));
+    }
+}
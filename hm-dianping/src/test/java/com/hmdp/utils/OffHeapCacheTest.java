@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 堆外缓存：读写、删除、过期、CLOCK淘汰（有访问标记的条目获得第二次机会）
+ * @author zyf
+ * @Data 2024/3/4 - 11:30
+ */
+class OffHeapCacheTest {
+
+    //条目头部的长度：长度(4) + 标记(1) + id(8) + 过期时间(8)
+    private static final int HEADER = 21;
+
+    private static byte[] value(long id, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) id);
+        return value;
+    }
+
+    @Test
+    void testGetPutInvalidate() {
+        OffHeapCache cache = new OffHeapCache(64 * 1024, 4, 60_000);
+        assertNull(cache.get(1L));
+        cache.put(1L, value(1, 100));
+        cache.put(2L, value(2, 0));
+        assertArrayEquals(value(1, 100), cache.get(1L));
+        assertArrayEquals(new byte[0], cache.get(2L));
+        //覆盖写入
+        cache.put(1L, value(3, 50));
+        assertArrayEquals(value(3, 50), cache.get(1L));
+        cache.invalidate(1L);
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void testExpire() {
+        OffHeapCache cache = new OffHeapCache(64 * 1024, 4, -1);
+        cache.put(1L, value(1, 10));
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void testTooLarge() {
+        //超过单段容量1/4的数据不缓存
+        OffHeapCache cache = new OffHeapCache(1024, 1, 60_000);
+        cache.put(1L, value(1, 300));
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void testClockEviction() {
+        //1段1024字节：每个条目121字节、最多放下8个
+        OffHeapCache cache = new OffHeapCache(1024, 1, 60_000);
+        int length = 121 - HEADER;
+        for (long id = 1; id <= 8; id++) {
+            cache.put(id, value(id, length));
+        }
+        //访问1：回收时获得第二次机会
+        assertNotNull(cache.get(1L));
+        cache.put(9L, value(9, length));
+
+        //1重新追加到头部、没有访问标记的2被淘汰
+        assertArrayEquals(value(1, length), cache.get(1L));
+        assertNull(cache.get(2L));
+        for (long id = 3; id <= 9; id++) {
+            assertArrayEquals(value(id, length), cache.get(id));
+        }
+        Map<String, Object> stats = cache.getStats();
+        assertEquals(1L, stats.get("evictionCount"));
+        assertEquals(1L, stats.get("reinsertionCount"));
+        assertEquals(8L, stats.get("entries"));
+    }
+
+    @Test
+    void testManyWrites() {
+        //反复写入超过容量的数据：索引和环形日志保持一致、最近写入的数据可以读到
+        OffHeapCache cache = new OffHeapCache(16 * 1024, 2, 60_000);
+        for (long id = 0; id < 5000; id++) {
+            cache.put(id % 700, value(id, (int) (id % 200)));
+            if (id % 3 == 0) {
+                cache.get((id * 7) % 700);
+            }
+        }
+        for (long id = 4990; id < 5000; id++) {
+            assertArrayEquals(value(id, (int) (id % 200)), cache.get(id % 700));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分区的批处理线程：同一个key在同一个线程中按顺序处理、攒批上限、失败统计、队列满时阻塞、关闭时处理完队列
+ * @author zyf
+ * @Data 2024/3/4 - 11:50
+ */
+class PartitionedWorkersTest {
+
+    @Test
+    void testSameKeyInOrderOnOneThread() throws InterruptedException {
+        //key -> 处理的线程和顺序
+        Map<Long, List<String>> threads = new ConcurrentHashMap<>();
+        Map<Long, List<Integer>> orders = new ConcurrentHashMap<>();
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        PartitionedWorkers<int[]> workers = new PartitionedWorkers<>("test", 4, 100, 10, 5,
+                task -> task[0], batch -> {
+                    batchSizes.add(batch.size());
+                    for (int[] task : batch) {
+                        threads.computeIfAbsent((long) task[0], k -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(Thread.currentThread().getName());
+                        orders.computeIfAbsent((long) task[0], k -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(task[1]);
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            workers.submit(new int[]{i % 20, i});
+        }
+        //关闭时处理完队列中剩余的任务
+        workers.shutdown(5000);
+
+        assertEquals(20, orders.size());
+        int total = 0;
+        for (Map.Entry<Long, List<Integer>> entry : orders.entrySet()) {
+            List<Integer> seq = entry.getValue();
+            total += seq.size();
+            for (int i = 1; i < seq.size(); i++) {
+                assertTrue(seq.get(i - 1) < seq.get(i), "同一个key的任务没有按提交顺序处理");
+            }
+            assertEquals(1L, threads.get(entry.getKey()).stream().distinct().count());
+        }
+        assertEquals(1000, total);
+        for (int size : batchSizes) {
+            assertTrue(size <= 10);
+        }
+        long processed = 0;
+        for (Map<String, Object> stats : workers.getStats()) {
+            processed += (Long) stats.get("processed");
+            assertEquals(0, stats.get("queueSize"));
+        }
+        assertEquals(1000L, processed);
+    }
+
+    @Test
+    void testFailureCounted() throws InterruptedException {
+        PartitionedWorkers<Long> workers = new PartitionedWorkers<>("test", 1, 10, 1, 0,
+                task -> task, batch -> {
+                    if (batch.get(0) % 2 == 0) {
+                        throw new IllegalStateException("数据库不可用");
+                    }
+                });
+        for (long i = 0; i < 4; i++) {
+            workers.submit(i);
+        }
+        workers.shutdown(5000);
+        Map<String, Object> stats = workers.getStats().get(0);
+        assertEquals(2L, stats.get("processed"));
+        assertEquals(2L, stats.get("failed"));
+        assertEquals(4L, stats.get("batches"));
+        assertThrows(IllegalStateException.class, () -> workers.submit(5L));
+    }
+
+    @Test
+    void testSubmitBlocksWhenQueueFull() throws InterruptedException {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        PartitionedWorkers<Long> workers = new PartitionedWorkers<>("test", 1, 1, 1, 0,
+                task -> 0L, batch -> {
+                    handling.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.addAndGet(batch.size());
+                });
+        //第一个任务在处理中、第二个占满队列
+        workers.submit(1L);
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        workers.submit(2L);
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                workers.submit(3L);
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        //队列已满：第三个任务阻塞
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        workers.shutdown(5000);
+        assertEquals(3, handled.get());
+    }
+}
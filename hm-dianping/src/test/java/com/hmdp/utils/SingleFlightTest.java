@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 请求合并：并发的同一个key只加载一次、异常传给等待的线程、不同key互不影响
+ * @author zyf
+ * @Data 2024/3/4 - 10:50
+ */
+class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    void testConcurrentCallsShareResult() throws Exception {
+        int threads = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            //第一个线程开始加载后再提交其他线程
+            Future<String> first = executor.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "shop1";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            assertTrue(singleFlight.isInFlight("cache:shop:1"));
+            List<Future<String>> others = new ArrayList<>();
+            for (int i = 1; i < threads; i++) {
+                others.add(executor.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+            }
+            //等待其他线程进入等待
+            Thread.sleep(100);
+            release.countDown();
+            assertEquals("shop1", first.get(5, TimeUnit.SECONDS));
+            for (Future<String> other : others) {
+                assertEquals("shop1", other.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+            assertFalse(singleFlight.isInFlight("cache:shop:1"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testExceptionPropagated() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = executor.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                loading.countDown();
+                await(release);
+                throw new IllegalStateException("数据库不可用");
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<Object> waiter = executor.submit(() -> singleFlight.execute("cache:shop:1", () -> "other"));
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<Object> future : Arrays.asList(first, waiter)) {
+                Exception e = assertThrows(Exception.class, () -> future.get(5, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            //失败后不会留下记录：下一次调用重新加载
+            assertEquals("shop1", singleFlight.execute("cache:shop:1", () -> "shop1"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testDifferentKeys() {
+        //加载过程中加载另一个key：不会互相等待
+        String result = singleFlight.execute("cache:shop:1", () ->
+                "shop1," + singleFlight.execute("cache:shop:2", () -> "shop2"));
+        assertEquals("shop1,shop2", result);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 限流的本地令牌桶：突发容量、拒绝时的等待时间、按时间补充、补充不超过容量
+ * @author zyf
+ * @Data 2024/3/4 - 14:20
+ */
+class TokenBucketTest {
+
+    @Test
+    void testBurstThenReject() {
+        //每秒1个令牌、容量2
+        RateLimitInterceptor.TokenBucket bucket = new RateLimitInterceptor.TokenBucket(1, 2);
+        assertEquals(0L, bucket.tryAcquire());
+        assertEquals(0L, bucket.tryAcquire());
+        long waitNanos = bucket.tryAcquire();
+        //下一个令牌大约1秒后补充
+        assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(waitNanos <= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void testRefill() throws InterruptedException {
+        //每秒1000个令牌、容量1
+        RateLimitInterceptor.TokenBucket bucket = new RateLimitInterceptor.TokenBucket(1000, 1);
+        assertEquals(0L, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+        Thread.sleep(20);
+        assertEquals(0L, bucket.tryAcquire());
+    }
+
+    @Test
+    void testRefillCappedAtCapacity() throws InterruptedException {
+        //空闲很久之后最多只有capacity个令牌
+        RateLimitInterceptor.TokenBucket bucket = new RateLimitInterceptor.TokenBucket(1000, 3);
+        Thread.sleep(50);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, bucket.tryAcquire());
+        }
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+}